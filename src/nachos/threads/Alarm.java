@@ -37,7 +37,11 @@ public class Alarm {
 		for (int i = 0; i < wakeQueue.size(); ++i) {
 			WakeThread wakeThread = wakeQueue.get(i);
 			if (wakeThread.wakeTime < currentTime) {
-				wakeThread.wakeThread.ready();
+				if (wakeThread.semaphore != null) {
+					wakeThread.semaphore.V();
+				} else {
+					wakeThread.wakeThread.ready();
+				}
 				wakeQueue.remove(i--);
 			}
 		}
@@ -66,15 +70,53 @@ public class Alarm {
 		KThread.sleep();
 		Machine.interrupt().setStatus(intStatus);
 	}
+
+	/**
+	 * Call <tt>V()</tt> on the specified semaphore in the first timer
+	 * interrupt at least <i>x</i> ticks from now, unless <tt>cancel()</tt>
+	 * is called first. Unlike <tt>waitUntil()</tt>, the current thread
+	 * continues running.
+	 * 
+	 * @param x
+	 *            the minimum number of clock ticks to wait.
+	 * @param semaphore
+	 *            the semaphore to signal.
+	 */
+	public void scheduleV(long x, Semaphore semaphore) {
+		boolean intStatus = Machine.interrupt().disable();
+		long wakeTime = Machine.timer().getTime() + x;
+		wakeQueue.add(new WakeThread(wakeTime, semaphore));
+		Machine.interrupt().setStatus(intStatus);
+	}
+
+	/**
+	 * Cancel the pending <tt>scheduleV()</tt> calls on the specified
+	 * semaphore.
+	 */
+	public void cancel(Semaphore semaphore) {
+		boolean intStatus = Machine.interrupt().disable();
+		for (Iterator<WakeThread> it = wakeQueue.iterator(); it.hasNext();) {
+			if (it.next().semaphore == semaphore) {
+				it.remove();
+			}
+		}
+		Machine.interrupt().setStatus(intStatus);
+	}
 	
 	private class WakeThread {
 		long wakeTime;
 		KThread wakeThread;
+		Semaphore semaphore;
 		
 		WakeThread(long wakeTime, KThread wakeThread) {
 			this.wakeTime = wakeTime;
 			this.wakeThread = wakeThread;
 		}
+
+		WakeThread(long wakeTime, Semaphore semaphore) {
+			this.wakeTime = wakeTime;
+			this.semaphore = semaphore;
+		}
 	}
 	
 	private LinkedList<WakeThread> wakeQueue = new LinkedList<WakeThread>();
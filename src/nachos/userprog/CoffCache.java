@@ -0,0 +1,244 @@
+package nachos.userprog;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import nachos.machine.Coff;
+import nachos.machine.CoffSection;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A kernel-wide cache of parsed COFF executables. Executing the same program
+ * again reuses the parsed headers and the section pages already read from the
+ * file system, instead of reopening and rereading the executable.
+ *
+ * <p>
+ * An image is identified by its file name, and stays valid until the kernel
+ * modifies or removes that file (see <tt>invalidate()</tt>). At most
+ * <tt>Kernel.coffCacheSize</tt> images are kept; the least recently executed
+ * one is evicted first. An evicted image stays usable by the processes still
+ * running it.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new COFF cache.
+	 *
+	 * @param capacity
+	 *            the maximum number of executables to keep cached.
+	 */
+	public CoffCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Open the executable with the specified name. The returned loader must be
+	 * closed like any other <tt>Coff</tt> object.
+	 *
+	 * @param name
+	 *            the name of the file containing the executable.
+	 * @return a loader for the executable, or <tt>null</tt> if the file could
+	 *         not be opened.
+	 * @exception EOFException
+	 *                if the executable is corrupt.
+	 */
+	public Coff open(String name) throws EOFException {
+		Image image = images.get(name);
+		if (image != null)
+			return new CachedCoff(image);
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable == null)
+			return null;
+
+		Coff coff;
+		try {
+			coff = new Coff(executable);
+		} catch (EOFException e) {
+			executable.close();
+			throw e;
+		}
+
+		// someone else may have loaded the same file while we were blocked
+		Image other = images.get(name);
+		if (other != null) {
+			coff.close();
+			return new CachedCoff(other);
+		}
+
+		image = new Image(coff);
+		if (capacity > 0) {
+			image.cached = true;
+			images.put(name, image);
+		}
+
+		return new CachedCoff(image);
+	}
+
+	/**
+	 * Open another loader for the executable behind the specified loader,
+	 * without touching the file system.
+	 *
+	 * @param coff
+	 *            an open loader returned by <tt>open()</tt>.
+	 * @return a new loader for the same executable.
+	 */
+	public Coff duplicate(Coff coff) {
+		Lib.assertTrue(getImageID(coff) != -1);
+
+		return new CachedCoff(((CachedCoff) coff).image);
+	}
+
+	/**
+	 * Return a number identifying the cached image behind the specified loader.
+	 * Two loaders return the same number only if they were opened from the
+	 * same image, so their read-only sections have identical contents.
+	 *
+	 * @param coff
+	 *            a loader returned by <tt>open()</tt>.
+	 * @return the image number, or -1 if the loader is not open.
+	 */
+	public int getImageID(Coff coff) {
+		if (!(coff instanceof CachedCoff) || ((CachedCoff) coff).image == null)
+			return -1;
+
+		return ((CachedCoff) coff).image.id;
+	}
+
+	/**
+	 * Notify the cache that the specified file was modified or removed. Later
+	 * calls to <tt>open()</tt> reread the file.
+	 *
+	 * @param name
+	 *            the name of the file.
+	 */
+	public void invalidate(String name) {
+		Image image = images.remove(name);
+		if (image != null)
+			image.uncache();
+	}
+
+	private class Image {
+		Image(Coff coff) {
+			this.coff = coff;
+			id = nextImageID++;
+
+			entryPoint = coff.getEntryPoint();
+			pages = new byte[coff.getNumSections()][][];
+			for (int s = 0; s < pages.length; s++)
+				pages[s] = new byte[coff.getSection(s).getLength()][];
+		}
+
+		void release() {
+			Lib.assertTrue(refCount > 0);
+			if (--refCount == 0 && !cached)
+				coff.close();
+		}
+
+		void uncache() {
+			cached = false;
+			if (refCount == 0)
+				coff.close();
+		}
+
+		Coff coff;
+		int id;
+		int entryPoint;
+		byte[][][] pages;
+
+		int refCount = 0;
+		boolean cached = false;
+	}
+
+	private class CachedCoff extends Coff {
+		CachedCoff(Image image) {
+			super();
+
+			this.image = image;
+			image.refCount++;
+
+			entryPoint = image.entryPoint;
+			sections = new CoffSection[image.pages.length];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = new CachedSection(this, image, s, image.coff
+						.getSection(s));
+		}
+
+		public int getEntryPoint() {
+			Lib.assertTrue(image != null);
+
+			return entryPoint;
+		}
+
+		public void close() {
+			if (image == null)
+				return;
+
+			image.release();
+			image = null;
+			sections = null;
+		}
+
+		private Image image;
+	}
+
+	private class CachedSection extends CoffSection {
+		CachedSection(Coff coff, Image image, int sectionNumber,
+				CoffSection original) {
+			super(coff, original.getName(), original.isReadOnly(), original
+					.isReadOnly(), original.getLength(), original.getFirstVPN());
+
+			this.image = image;
+			this.sectionNumber = sectionNumber;
+			initialized = original.isInitialzed();
+		}
+
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn >= 0 && spn < numPages);
+			Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = Processor.makeAddress(ppn, 0);
+
+			if (!initialized) {
+				Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+				return;
+			}
+
+			byte[] page = image.pages[sectionNumber][spn];
+			if (page == null) {
+				image.coff.getSection(sectionNumber).loadPage(spn, ppn);
+
+				page = new byte[pageSize];
+				System.arraycopy(memory, paddr, page, 0, pageSize);
+				image.pages[sectionNumber][spn] = page;
+			} else {
+				System.arraycopy(page, 0, memory, paddr, pageSize);
+			}
+		}
+
+		private Image image;
+		private int sectionNumber;
+	}
+
+	private int capacity;
+	private int nextImageID = 0;
+
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(
+				java.util.Map.Entry<String, Image> eldest) {
+			if (size() <= capacity)
+				return false;
+
+			eldest.getValue().uncache();
+			return true;
+		}
+	};
+
+	private static final int pageSize = Processor.pageSize;
+}
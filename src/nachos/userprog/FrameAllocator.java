@@ -0,0 +1,256 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.threads.Lock;
+
+/**
+ * Keeps track of the free frames of physical memory.
+ *
+ * <p>
+ * Free frames are recorded in a bitmap, and grouped into buddy blocks: a
+ * block of order <i>k</i> holds 2<sup><i>k</i></sup> free frames and starts
+ * at a multiple of 2<sup><i>k</i></sup>. Single frames are split off the
+ * smallest block available, and freed frames are merged with their buddy
+ * whenever it is free too, so physically contiguous runs can be allocated
+ * with <tt>allocateContiguous()</tt>. The number of free frames is kept up
+ * to date, so <tt>getFreeCount()</tt> takes constant time.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator, with every frame free.
+	 *
+	 * @param numFrames
+	 *            the number of frames of physical memory.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames > 0);
+
+		this.numFrames = numFrames;
+
+		maxOrder = 0;
+		while ((1 << (maxOrder + 1)) <= numFrames)
+			maxOrder++;
+
+		bitmap = new long[(numFrames + 63) / 64];
+		order = new int[numFrames];
+		next = new int[numFrames];
+		prev = new int[numFrames];
+		head = new int[maxOrder + 1];
+		for (int i = 0; i < numFrames; i++)
+			order[i] = -1;
+		for (int k = 0; k <= maxOrder; k++)
+			head[k] = -1;
+
+		// carve memory into the largest aligned blocks that fit
+		for (int ppn = 0; ppn < numFrames;) {
+			int k = maxOrder;
+			while ((ppn & ((1 << k) - 1)) != 0 || ppn + (1 << k) > numFrames)
+				k--;
+			setFree(ppn, 1 << k, true);
+			insert(ppn, k);
+			ppn += 1 << k;
+		}
+		freeCount = numFrames;
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Return the number of free frames.
+	 */
+	public int getFreeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Return the total number of frames managed by this allocator.
+	 */
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified frame is free.
+	 */
+	public boolean isFree(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+		return (bitmap[ppn >> 6] & (1L << (ppn & 63))) != 0;
+	}
+
+	/**
+	 * Allocate a single frame.
+	 *
+	 * @return the frame number, or -1 if no frame is free.
+	 */
+	public int allocate() {
+		lock.acquire();
+		int ppn = allocateBlock(0);
+		lock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate the specified number of frames, not necessarily contiguous.
+	 * Either every frame is allocated, or none is.
+	 *
+	 * @param count
+	 *            the number of frames to allocate.
+	 * @return the frame numbers, or <tt>null</tt> if not enough frames are
+	 *         free.
+	 */
+	public int[] allocate(int count) {
+		lock.acquire();
+		if (count > freeCount) {
+			lock.release();
+			return null;
+		}
+
+		int[] frames = new int[count];
+		for (int i = 0; i < count; i++)
+			frames[i] = allocateBlock(0);
+
+		lock.release();
+		return frames;
+	}
+
+	/**
+	 * Allocate the specified number of physically contiguous frames.
+	 *
+	 * @param count
+	 *            the number of frames to allocate.
+	 * @return the first frame of the run, or -1 if no run that long is free.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		int k = 0;
+		while ((1 << k) < count)
+			k++;
+		if (k > maxOrder)
+			return -1;
+
+		lock.acquire();
+		int first = allocateBlock(k);
+		// give back the tail of the block
+		if (first != -1) {
+			for (int ppn = first + count; ppn < first + (1 << k); ppn++)
+				freeBlock(ppn);
+		}
+		lock.release();
+
+		return first;
+	}
+
+	/**
+	 * Free a frame allocated by this allocator.
+	 */
+	public void free(int ppn) {
+		lock.acquire();
+		freeBlock(ppn);
+		lock.release();
+	}
+
+	/**
+	 * Free the first <i>count</i> frames of the specified array.
+	 */
+	public void free(int[] frames, int count) {
+		lock.acquire();
+		for (int i = 0; i < count; i++)
+			freeBlock(frames[i]);
+		lock.release();
+	}
+
+	/**
+	 * Free a run of contiguous frames allocated by
+	 * <tt>allocateContiguous()</tt>.
+	 */
+	public void freeContiguous(int first, int count) {
+		lock.acquire();
+		for (int ppn = first; ppn < first + count; ppn++)
+			freeBlock(ppn);
+		lock.release();
+	}
+
+	private int allocateBlock(int k) {
+		int j = k;
+		while (j <= maxOrder && head[j] == -1)
+			j++;
+		if (j > maxOrder)
+			return -1;
+
+		int ppn = head[j];
+		remove(ppn, j);
+
+		// split until the block has the requested size
+		while (j > k) {
+			j--;
+			insert(ppn + (1 << j), j);
+		}
+
+		setFree(ppn, 1 << k, false);
+		freeCount -= 1 << k;
+		return ppn;
+	}
+
+	private void freeBlock(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numFrames && !isFree(ppn));
+
+		setFree(ppn, 1, true);
+		freeCount++;
+
+		int k = 0;
+		while (k < maxOrder) {
+			int buddy = ppn ^ (1 << k);
+			if (buddy >= numFrames || order[buddy] != k)
+				break;
+
+			remove(buddy, k);
+			ppn = Math.min(ppn, buddy);
+			k++;
+		}
+		insert(ppn, k);
+	}
+
+	private void insert(int ppn, int k) {
+		order[ppn] = k;
+		prev[ppn] = -1;
+		next[ppn] = head[k];
+		if (head[k] != -1)
+			prev[head[k]] = ppn;
+		head[k] = ppn;
+	}
+
+	private void remove(int ppn, int k) {
+		if (prev[ppn] != -1)
+			next[prev[ppn]] = next[ppn];
+		else
+			head[k] = next[ppn];
+		if (next[ppn] != -1)
+			prev[next[ppn]] = prev[ppn];
+		order[ppn] = -1;
+	}
+
+	private void setFree(int first, int count, boolean free) {
+		for (int ppn = first; ppn < first + count; ppn++) {
+			if (free)
+				bitmap[ppn >> 6] |= 1L << (ppn & 63);
+			else
+				bitmap[ppn >> 6] &= ~(1L << (ppn & 63));
+		}
+	}
+
+	private int numFrames;
+	private int freeCount;
+	private int maxOrder;
+
+	/** One bit per frame, set if the frame is free. */
+	private long[] bitmap;
+	/** The order of the free block starting at each frame, or -1. */
+	private int[] order;
+	/** The free lists of every order, linked through the frames. */
+	private int[] head, next, prev;
+
+	private Lock lock;
+}
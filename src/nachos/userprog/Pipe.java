@@ -0,0 +1,213 @@
+package nachos.userprog;
+
+import java.util.LinkedList;
+
+import nachos.machine.Lib;
+import nachos.machine.OpenFile;
+import nachos.threads.Condition2;
+import nachos.threads.Lock;
+import nachos.threads.Semaphore;
+
+/**
+ * A bounded in-kernel byte stream between processes. Bytes written to the
+ * write end are kept in a ring buffer until read from the read end. Both ends
+ * are accessed through <tt>OpenFile</tt> objects, and each end can be shared
+ * by several processes through <tt>duplicate()</tt>.
+ *
+ * <p>
+ * A read blocks until at least one byte is available, and returns 0 once the
+ * buffer is empty and every write end is closed. A write blocks until every
+ * byte has been buffered, and stops short once every read end is closed.
+ * Closing an end also stops a read or write blocked on that end.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new pipe.
+	 *
+	 * @param capacity
+	 *            the number of bytes the pipe can buffer.
+	 */
+	public Pipe(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Return a new <tt>OpenFile</tt> for the read end of this pipe.
+	 */
+	public OpenFile openForReading() {
+		return new File(true);
+	}
+
+	/**
+	 * Return a new <tt>OpenFile</tt> for the write end of this pipe.
+	 */
+	public OpenFile openForWriting() {
+		return new File(false);
+	}
+
+	/**
+	 * Return another <tt>OpenFile</tt> for the same end of the pipe as the
+	 * specified file, which stays open until both files are closed.
+	 *
+	 * @param file
+	 *            an open end of a pipe.
+	 * @return the new file, or <tt>null</tt> if <i>file</i> is not an open end
+	 *         of a pipe.
+	 */
+	public static OpenFile duplicate(OpenFile file) {
+		if (!(file instanceof File) || ((File) file).closed)
+			return null;
+
+		File end = (File) file;
+		return end.pipe().new File(end.reading);
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified file is an end of a pipe.
+	 */
+	public static boolean isPipe(OpenFile file) {
+		return file instanceof File;
+	}
+
+	private int read(File end, byte[] buf, int offset, int length) {
+		if (length == 0)
+			return 0;
+
+		lock.acquire();
+		while (count == 0 && writers > 0 && !end.closed)
+			notEmpty.sleep();
+
+		int amount = Math.min(length, count);
+		for (int i = 0; i < amount; i++) {
+			buf[offset + i] = buffer[head];
+			head = (head + 1) % buffer.length;
+		}
+		count -= amount;
+
+		if (amount > 0) {
+			notFull.wakeAll();
+			notifyWaiters();
+		}
+		lock.release();
+
+		return amount;
+	}
+
+	private int write(File end, byte[] buf, int offset, int length) {
+		lock.acquire();
+		int written = 0;
+		while (written < length && readers > 0 && !end.closed) {
+			if (count == buffer.length) {
+				notFull.sleep();
+				continue;
+			}
+
+			int amount = Math.min(length - written, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			for (int i = 0; i < amount; i++) {
+				buffer[tail] = buf[offset + written + i];
+				tail = (tail + 1) % buffer.length;
+			}
+			count += amount;
+			written += amount;
+
+			notEmpty.wakeAll();
+			notifyWaiters();
+		}
+		lock.release();
+
+		return written;
+	}
+
+	private void notifyWaiters() {
+		for (Semaphore waiter : waiters)
+			waiter.V();
+	}
+
+	private byte[] buffer;
+	private int head = 0;
+	private int count = 0;
+
+	private int readers = 0;
+	private int writers = 0;
+
+	private Lock lock = new Lock();
+	private Condition2 notEmpty = new Condition2(lock);
+	private Condition2 notFull = new Condition2(lock);
+	private LinkedList<Semaphore> waiters = new LinkedList<Semaphore>();
+
+	private class File extends OpenFile implements Pollable {
+		File(boolean reading) {
+			super(null, "Pipe");
+
+			this.reading = reading;
+
+			lock.acquire();
+			if (reading)
+				readers++;
+			else
+				writers++;
+			lock.release();
+		}
+
+		Pipe pipe() {
+			return Pipe.this;
+		}
+
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+
+			// wake anyone waiting on either end
+			lock.acquire();
+			if (reading)
+				readers--;
+			else
+				writers--;
+			notEmpty.wakeAll();
+			notFull.wakeAll();
+			notifyWaiters();
+			lock.release();
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			if (closed || !reading)
+				return -1;
+
+			return Pipe.this.read(this, buf, offset, length);
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			if (closed || reading)
+				return -1;
+
+			return Pipe.this.write(this, buf, offset, length);
+		}
+
+		public boolean isReadable() {
+			return !closed && reading && (count > 0 || writers == 0);
+		}
+
+		public boolean isWritable() {
+			return !closed && !reading && (count < buffer.length || readers == 0);
+		}
+
+		public void addWaiter(Semaphore waiter) {
+			lock.acquire();
+			waiters.add(waiter);
+			lock.release();
+		}
+
+		public void removeWaiter(Semaphore waiter) {
+			lock.acquire();
+			waiters.remove(waiter);
+			lock.release();
+		}
+
+		private boolean reading;
+		private boolean closed = false;
+	}
+}
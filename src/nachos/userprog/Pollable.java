@@ -0,0 +1,32 @@
+package nachos.userprog;
+
+import nachos.threads.Semaphore;
+
+/**
+ * An <tt>OpenFile</tt> whose reads or writes may have to wait, such as the
+ * console or a pipe. Used by <tt>poll()</tt> to wait for any of several
+ * files to become ready.
+ */
+public interface Pollable {
+	/**
+	 * Return <tt>true</tt> if a read would return without waiting.
+	 */
+	public boolean isReadable();
+
+	/**
+	 * Return <tt>true</tt> if a write of one byte would return without
+	 * waiting.
+	 */
+	public boolean isWritable();
+
+	/**
+	 * Call <tt>V()</tt> on the specified semaphore whenever this file may have
+	 * become readable or writable, until the semaphore is removed.
+	 */
+	public void addWaiter(Semaphore waiter);
+
+	/**
+	 * Stop notifying the specified semaphore.
+	 */
+	public void removeWaiter(Semaphore waiter);
+}
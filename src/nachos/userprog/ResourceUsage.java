@@ -0,0 +1,80 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+
+/**
+ * The resources used by a process, or by the children it has joined.
+ *
+ * <p>
+ * Time is measured with the simulated timer while a thread of the process
+ * is running, and split into user and kernel time at every transition made
+ * by the exception handler. Each <tt>UThread</tt> keeps its own measurement
+ * and adds it here with <tt>charge()</tt>. Time spent in interrupt handlers
+ * is charged to whichever process was running.
+ */
+public class ResourceUsage {
+	/**
+	 * Allocate a new, empty resource usage record.
+	 */
+	public ResourceUsage() {
+	}
+
+	/**
+	 * Add the usage recorded in another record to this one.
+	 */
+	public void add(ResourceUsage usage) {
+		userTicks += usage.userTicks;
+		kernelTicks += usage.kernelTicks;
+		syscalls += usage.syscalls;
+		pageFaults += usage.pageFaults;
+		tlbMisses += usage.tlbMisses;
+		swapIns += usage.swapIns;
+		swapOuts += usage.swapOuts;
+		bytesRead += usage.bytesRead;
+		bytesWritten += usage.bytesWritten;
+	}
+
+	/**
+	 * Add ticks spent by a thread of the process in kernel or in user mode.
+	 */
+	public void charge(long ticks, boolean inKernel) {
+		if (inKernel)
+			kernelTicks += ticks;
+		else
+			userTicks += ticks;
+	}
+
+	/**
+	 * Return the record as it is laid out for <tt>getrusage()</tt>: nine
+	 * 32-bit words, in the order of the fields of this class.
+	 */
+	public byte[] toBytes() {
+		int[] values = new int[] { (int) userTicks, (int) kernelTicks,
+				syscalls, pageFaults, tlbMisses, swapIns, swapOuts,
+				(int) bytesRead, (int) bytesWritten };
+
+		byte[] bytes = new byte[values.length * 4];
+		for (int i = 0; i < values.length; i++)
+			Lib.bytesFromInt(bytes, i * 4, values[i]);
+		return bytes;
+	}
+
+	/** Ticks spent running user code. */
+	public long userTicks = 0;
+	/** Ticks spent in the kernel on behalf of the process. */
+	public long kernelTicks = 0;
+	/** Number of syscalls made. */
+	public int syscalls = 0;
+	/** Number of page faults taken. */
+	public int pageFaults = 0;
+	/** Number of TLB misses taken. */
+	public int tlbMisses = 0;
+	/** Number of pages read back from swap. */
+	public int swapIns = 0;
+	/** Number of pages of the process written to swap. */
+	public int swapOuts = 0;
+	/** Number of bytes returned by read(). */
+	public long bytesRead = 0;
+	/** Number of bytes accepted by write(). */
+	public long bytesWritten = 0;
+}
@@ -1,5 +1,8 @@
 package nachos.userprog;
 
+import java.util.LinkedList;
+
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
@@ -10,6 +13,11 @@ import nachos.threads.Semaphore;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is queued in a buffer of <tt>SynchConsole.outputBufferSize</tt>
+ * bytes and sent by the send interrupt handler, so writers only wait when the
+ * buffer is full. <tt>flush()</tt> waits until everything queued is sent.
  */
 public class SynchConsole {
 	/**
@@ -21,6 +29,9 @@ public class SynchConsole {
 	public SynchConsole(SerialConsole console) {
 		this.console = console;
 
+		outputBuffer = new byte[Math.max(1, Config.getInteger(
+				"SynchConsole.outputBufferSize", 1024))];
+
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -85,21 +96,72 @@ public class SynchConsole {
 	private void receiveInterrupt() {
 		charAvailable = true;
 		readWait.V();
+		notifyWaiters();
+	}
+
+	private void notifyWaiters() {
+		for (Semaphore waiter : waiters)
+			waiter.V();
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Queue a byte to be sent. Blocks only if the output buffer is full.
 	 * 
 	 * @param value
 	 *            the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		queueByte(value);
+		writeLock.release();
+	}
+
+	/**
+	 * Queue the specified bytes to be sent, in order, with no output of other
+	 * threads in between. Blocks only while the output buffer is full.
+	 */
+	public void write(byte[] buf, int offset, int length) {
+		writeLock.acquire();
+		for (int i = 0; i < length; i++)
+			queueByte(buf[offset + i]);
 		writeLock.release();
 	}
 
+	/**
+	 * Wait until every queued byte has been sent.
+	 */
+	public void flush() {
+		writeLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+		while (outputCount > 0 || sending) {
+			writerWaiting = true;
+			writeWait.P();
+		}
+		Machine.interrupt().restore(intStatus);
+		writeLock.release();
+	}
+
+	private void queueByte(int value) {
+		boolean intStatus = Machine.interrupt().disable();
+		while (outputCount == outputBuffer.length) {
+			writerWaiting = true;
+			writeWait.P();
+		}
+
+		outputBuffer[(outputHead + outputCount) % outputBuffer.length] = (byte) value;
+		outputCount++;
+		if (!sending)
+			sendNext();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void sendNext() {
+		sending = true;
+		console.writeByte(outputBuffer[outputHead]);
+		outputHead = (outputHead + 1) % outputBuffer.length;
+		outputCount--;
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 * 
@@ -110,7 +172,16 @@ public class SynchConsole {
 	}
 
 	private void sendInterrupt() {
-		writeWait.V();
+		sending = false;
+		if (outputCount > 0)
+			sendNext();
+
+		// the writer holding writeLock waits for room, or for the buffer to drain
+		if (writerWaiting) {
+			writerWaiting = false;
+			writeWait.V();
+		}
+		notifyWaiters();
 	}
 
 	private boolean charAvailable = false;
@@ -121,7 +192,15 @@ public class SynchConsole {
 	private Semaphore readWait = new Semaphore(0);
 	private Semaphore writeWait = new Semaphore(0);
 
-	private class File extends OpenFile {
+	private byte[] outputBuffer;
+	private int outputHead = 0;
+	private int outputCount = 0;
+	private boolean sending = false;
+	private boolean writerWaiting = false;
+
+	private LinkedList<Semaphore> waiters = new LinkedList<Semaphore>();
+
+	private class File extends OpenFile implements Pollable {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
 
@@ -130,6 +209,8 @@ public class SynchConsole {
 		}
 
 		public void close() {
+			if (canWrite)
+				flush();
 			canRead = canWrite = false;
 		}
 
@@ -153,12 +234,31 @@ public class SynchConsole {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+			SynchConsole.this.write(buf, offset, length);
 
 			return length;
 		}
 
+		public boolean isReadable() {
+			return canRead && charAvailable;
+		}
+
+		public boolean isWritable() {
+			return canWrite && outputCount < outputBuffer.length;
+		}
+
+		public void addWaiter(Semaphore waiter) {
+			boolean intStatus = Machine.interrupt().disable();
+			waiters.add(waiter);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		public void removeWaiter(Semaphore waiter) {
+			boolean intStatus = Machine.interrupt().disable();
+			waiters.remove(waiter);
+			Machine.interrupt().restore(intStatus);
+		}
+
 		private boolean canRead, canWrite;
 	}
 }
@@ -0,0 +1,206 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.threads.Condition2;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+
+/**
+ * A submission and completion queue shared between a user process and the
+ * kernel, letting the process issue many syscalls with a single trap.
+ *
+ * <p>
+ * The ring lives in the virtual memory of the process, at the address given
+ * to <tt>ring_setup()</tt>, and is laid out as 32-bit words:
+ *
+ * <pre>
+ * 0                  submission head (written by the kernel)
+ * 4                  submission tail (written by the process)
+ * 8                  completion head (written by the process)
+ * 12                 completion tail (written by the kernel)
+ * 16                 entries submission entries of 5 words:
+ *                    syscall, a0, a1, a2, user data
+ * 16 + 20 * entries  entries completion entries of 2 words:
+ *                    user data, return value
+ * </pre>
+ *
+ * The heads and tails count entries from the creation of the ring; an entry
+ * is stored at its count modulo the number of entries. A process queues
+ * requests by filling submission entries and advancing the submission tail,
+ * then calls <tt>ring_submit()</tt>. A kernel thread executes the requests
+ * in order and appends a completion for each one, as long as the completion
+ * queue has room. Only <tt>creat()</tt>, <tt>open()</tt>, <tt>read()</tt>,
+ * <tt>write()</tt> and <tt>close()</tt> may be submitted; any other syscall
+ * completes with -1.
+ */
+public class SyscallRing {
+	/**
+	 * Allocate a new ring for the specified process.
+	 *
+	 * @param process
+	 *            the process owning the ring.
+	 * @param address
+	 *            the virtual address of the ring.
+	 * @param entries
+	 *            the number of entries of each queue.
+	 */
+	public SyscallRing(UserProcess process, int address, int entries) {
+		Lib.assertTrue(entries > 0);
+
+		this.process = process;
+		this.address = address;
+		this.entries = entries;
+	}
+
+	/**
+	 * Return the number of bytes used by a ring with the specified number of
+	 * entries.
+	 */
+	public static int getSize(int entries) {
+		return headerSize + entries * (submissionSize + completionSize);
+	}
+
+	/**
+	 * Clear the header of the ring and start the kernel thread serving it.
+	 *
+	 * @return <tt>true</tt> if the ring lies entirely in valid memory.
+	 */
+	public boolean start() {
+		byte[] ring = new byte[getSize(entries)];
+		if (process.readVirtualMemory(address, ring) < ring.length
+				|| process.writeVirtualMemory(address, new byte[headerSize]) < headerSize)
+			return false;
+
+		worker = new KThread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}).setName("ring worker");
+		worker.fork();
+
+		return true;
+	}
+
+	/**
+	 * Wake the kernel thread to execute the submitted requests, and optionally
+	 * wait for completions.
+	 *
+	 * @param waitFor
+	 *            the number of unconsumed completions to wait for. The wait
+	 *            ends early if the ring can make no more progress.
+	 * @return the number of requests submitted but not yet started.
+	 */
+	public int submit(int waitFor) {
+		lock.acquire();
+		int submitted = readWord(sqTailOffset) - sqHead;
+		work.wake();
+
+		while (readWord(cqTailOffset) - readWord(cqHeadOffset) < waitFor
+				&& (busy || canProgress()))
+			done.sleep();
+
+		lock.release();
+		return submitted;
+	}
+
+	/**
+	 * Stop the kernel thread, waiting for the request it is executing to
+	 * complete. The descriptors of the process should be closed first, so
+	 * that a request blocked on a pipe completes.
+	 */
+	public void stop() {
+		lock.acquire();
+		stopping = true;
+		work.wake();
+		lock.release();
+
+		worker.join();
+	}
+
+	private boolean canProgress() {
+		return readWord(sqTailOffset) != sqHead
+				&& cqTail - readWord(cqHeadOffset) < entries;
+	}
+
+	private void serve() {
+		lock.acquire();
+		while (true) {
+			while (!stopping && !canProgress())
+				work.sleep();
+			if (stopping)
+				break;
+
+			int at = address + headerSize + (sqHead % entries) * submissionSize;
+			byte[] request = new byte[submissionSize];
+			process.readVirtualMemory(at, request);
+			writeWord(sqHeadOffset, ++sqHead);
+
+			busy = true;
+			lock.release();
+			int result = execute(Lib.bytesToInt(request, 0),
+					Lib.bytesToInt(request, 4), Lib.bytesToInt(request, 8),
+					Lib.bytesToInt(request, 12));
+			lock.acquire();
+			busy = false;
+
+			at = address + headerSize + entries * submissionSize
+					+ (cqTail % entries) * completionSize;
+			byte[] completion = new byte[completionSize];
+			System.arraycopy(request, 16, completion, 0, 4);
+			Lib.bytesFromInt(completion, 4, result);
+			process.writeVirtualMemory(at, completion);
+			writeWord(cqTailOffset, ++cqTail);
+
+			done.wakeAll();
+		}
+		lock.release();
+	}
+
+	private int execute(int syscall, int a0, int a1, int a2) {
+		switch (syscall) {
+		case syscallCreate:
+		case syscallOpen:
+		case syscallRead:
+		case syscallWrite:
+		case syscallClose:
+			return process.handleSyscall(syscall, a0, a1, a2, 0);
+
+		default:
+			return -1;
+		}
+	}
+
+	private int readWord(int offset) {
+		byte[] word = new byte[4];
+		process.readVirtualMemory(address + offset, word);
+		return Lib.bytesToInt(word, 0);
+	}
+
+	private void writeWord(int offset, int value) {
+		process.writeVirtualMemory(address + offset, Lib.bytesFromInt(value));
+	}
+
+	private UserProcess process;
+	private int address;
+	private int entries;
+
+	// the kernel-owned counters, mirrored into the ring header
+	private int sqHead = 0;
+	private int cqTail = 0;
+
+	private KThread worker;
+	private boolean busy = false;
+	private boolean stopping = false;
+
+	private Lock lock = new Lock();
+	private Condition2 work = new Condition2(lock);
+	private Condition2 done = new Condition2(lock);
+
+	private static final int sqHeadOffset = 0, sqTailOffset = 4,
+			cqHeadOffset = 8, cqTailOffset = 12;
+	private static final int headerSize = 16;
+	private static final int submissionSize = 20, completionSize = 8;
+
+	private static final int syscallCreate = 4, syscallOpen = 5,
+			syscallRead = 6, syscallWrite = 7, syscallClose = 8;
+}
@@ -0,0 +1,191 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Records syscall events into a fixed-size ring buffer, and keeps a count and
+ * a latency histogram (in simulated ticks) for every syscall number.
+ *
+ * <p>
+ * Tracing is enabled by the <tt>nachos.conf</tt> key
+ * <tt>Kernel.syscallTrace</tt>. The ring holds the most recent
+ * <tt>Kernel.syscallTraceSize</tt> events; older events are overwritten. If
+ * <tt>Kernel.syscallTraceFile</tt> is set, the ring is exported to that file
+ * when the kernel terminates.
+ *
+ * <p>
+ * Recording never blocks and never performs I/O, so no lock is needed: the
+ * kernel cannot be switched out in the middle of <tt>enter()</tt> or
+ * <tt>exit()</tt>.
+ */
+public class SyscallTracer {
+	/**
+	 * Allocate a new syscall tracer.
+	 *
+	 * @param capacity
+	 *            the number of events kept in the ring buffer.
+	 */
+	public SyscallTracer(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+		seq = new long[capacity];
+		pid = new int[capacity];
+		number = new int[capacity];
+		args = new int[capacity * 4];
+		result = new int[capacity];
+		entryTick = new long[capacity];
+		exitTick = new long[capacity];
+	}
+
+	/**
+	 * Record the start of a syscall.
+	 *
+	 * @return the sequence number of the event, to be passed to
+	 *         <tt>exit()</tt>.
+	 */
+	public long enter(int processID, int syscall, int a0, int a1, int a2,
+			int a3) {
+		long id = nextSeq++;
+		int at = (int) (id % capacity);
+
+		seq[at] = id;
+		pid[at] = processID;
+		number[at] = syscall;
+		args[at * 4] = a0;
+		args[at * 4 + 1] = a1;
+		args[at * 4 + 2] = a2;
+		args[at * 4 + 3] = a3;
+		result[at] = 0;
+		entryTick[at] = Machine.timer().getTime();
+		exitTick[at] = -1;
+
+		return id;
+	}
+
+	/**
+	 * Record the completion of a syscall started by <tt>enter()</tt>. Syscalls
+	 * that never return (such as <tt>exit()</tt>) are simply left open.
+	 *
+	 * @param id
+	 *            the sequence number returned by <tt>enter()</tt>.
+	 * @param syscall
+	 *            the syscall number.
+	 * @param startTick
+	 *            the time at which the syscall started.
+	 * @param value
+	 *            the value returned to the user.
+	 */
+	public void exit(long id, int syscall, long startTick, int value) {
+		long now = Machine.timer().getTime();
+		int at = (int) (id % capacity);
+
+		// the event may already have been overwritten by a newer one
+		if (seq[at] == id) {
+			result[at] = value;
+			exitTick[at] = now;
+		}
+
+		if (syscall < 0 || syscall >= maxSyscalls)
+			return;
+
+		long latency = now - startTick;
+		count[syscall]++;
+		totalTicks[syscall] += latency;
+		if (latency > maxTicks[syscall])
+			maxTicks[syscall] = latency;
+		histogram[syscall][bucket(latency)]++;
+	}
+
+	/**
+	 * Return the number of completed calls of the specified syscall.
+	 */
+	public int getCount(int syscall) {
+		if (syscall < 0 || syscall >= maxSyscalls)
+			return 0;
+
+		return count[syscall];
+	}
+
+	/**
+	 * Print the per-syscall counts and latency histograms.
+	 */
+	public void print() {
+		System.out.println("Syscall trace: " + nextSeq + " events, "
+				+ Math.min(nextSeq, capacity) + " kept");
+
+		for (int s = 0; s < maxSyscalls; s++) {
+			if (count[s] == 0)
+				continue;
+
+			StringBuffer line = new StringBuffer();
+			line.append("syscall " + s + ": count " + count[s] + ", avg "
+					+ (totalTicks[s] / count[s]) + ", max " + maxTicks[s]
+					+ ", ticks");
+			for (int b = 0; b < numBuckets; b++) {
+				if (histogram[s][b] != 0)
+					line.append(" <" + (1L << b) + ":" + histogram[s][b]);
+			}
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * Write the events currently held in the ring buffer to the specified
+	 * file, one event per line, oldest first.
+	 *
+	 * @param fileName
+	 *            the name of the file to write.
+	 * @return <tt>true</tt> if the file was written successfully.
+	 */
+	public boolean export(String fileName) {
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+		if (file == null)
+			return false;
+
+		StringBuffer text = new StringBuffer();
+		for (long id = Math.max(0, nextSeq - capacity); id < nextSeq; id++) {
+			int at = (int) (id % capacity);
+			text.append(seq[at] + " " + pid[at] + " " + number[at]);
+			for (int i = 0; i < 4; i++)
+				text.append(" " + args[at * 4 + i]);
+			text.append(" " + result[at] + " " + entryTick[at] + " "
+					+ exitTick[at] + "\n");
+		}
+
+		byte[] bytes = text.toString().getBytes();
+		int written = file.write(bytes, 0, bytes.length);
+		file.close();
+
+		return written == bytes.length;
+	}
+
+	private static int bucket(long latency) {
+		int b = 0;
+		while (b < numBuckets - 1 && latency >= (1L << b))
+			b++;
+		return b;
+	}
+
+	private int capacity;
+	private long nextSeq = 0;
+
+	private long[] seq;
+	private int[] pid;
+	private int[] number;
+	private int[] args;
+	private int[] result;
+	private long[] entryTick;
+	private long[] exitTick;
+
+	private static final int maxSyscalls = 64;
+	private static final int numBuckets = 32;
+
+	private int[] count = new int[maxSyscalls];
+	private long[] totalTicks = new long[maxSyscalls];
+	private long[] maxTicks = new long[maxSyscalls];
+	private int[][] histogram = new int[maxSyscalls][numBuckets];
+}
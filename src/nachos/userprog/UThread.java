@@ -21,10 +21,27 @@ public class UThread extends KThread {
 		});
 
 		this.process = process;
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(this, process.getPriority());
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Allocate a new UThread that starts running user code with the specified
+	 * register values, instead of at the entry point of the program.
+	 */
+	public UThread(UserProcess process, int[] registers) {
+		this(process);
+
+		System.arraycopy(registers, 0, userRegisters, 0,
+				Processor.numUserRegisters);
+		inheritRegisters = true;
 	}
 
 	private void runProgram() {
-		process.initRegisters();
+		if (!inheritRegisters)
+			process.initRegisters();
 		process.restoreState();
 
 		Machine.processor().run();
@@ -36,6 +53,7 @@ public class UThread extends KThread {
 	 * Save state before giving up the processor to another thread.
 	 */
 	protected void saveState() {
+		chargeUsage();
 		process.saveState();
 
 		for (int i = 0; i < Processor.numUserRegisters; i++)
@@ -54,6 +72,34 @@ public class UThread extends KThread {
 			Machine.processor().writeRegister(i, userRegisters[i]);
 
 		process.restoreState();
+		mark = Machine.timer().getTime();
+	}
+
+	/**
+	 * Charge the time elapsed since the last transition to the process.
+	 */
+	public void chargeUsage() {
+		long now = Machine.timer().getTime();
+		process.getResourceUsage().charge(now - mark, inKernel);
+		mark = now;
+	}
+
+	/**
+	 * Charge the time elapsed in user mode, when this thread enters the
+	 * exception handler.
+	 */
+	public void enterKernel() {
+		chargeUsage();
+		inKernel = true;
+	}
+
+	/**
+	 * Charge the time elapsed in the exception handler, when this thread
+	 * returns to user mode.
+	 */
+	public void exitKernel() {
+		chargeUsage();
+		inKernel = false;
 	}
 
 	/**
@@ -67,6 +113,31 @@ public class UThread extends KThread {
 	 */
 	public int userRegisters[] = new int[Processor.numUserRegisters];
 
+	/**
+	 * Whether this thread starts with the registers given to its constructor.
+	 */
+	private boolean inheritRegisters = false;
+
+	/**
+	 * When the time of this thread was last charged, and whether it has been
+	 * in the kernel since. Kept per thread, as the threads of a process enter
+	 * and leave the kernel independently.
+	 */
+	private long mark = 0;
+	private boolean inKernel = false;
+
+	/**
+	 * The number of this thread within its process; 0 for the thread that
+	 * started the process.
+	 */
+	int threadID = 0;
+
+	/**
+	 * The first page of the stack given to this thread by
+	 * <tt>thread_create()</tt>, or -1.
+	 */
+	int stackVPN = -1;
+
 	/**
 	 * The process to which this thread belongs.
 	 */
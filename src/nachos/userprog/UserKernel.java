@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 
@@ -32,10 +30,23 @@ public class UserKernel extends ThreadedKernel {
 		});
 		
 		// Phase 2 Task 2
-		pageLock = new Lock();
-		freePage = new LinkedList();
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); ++i) {
-			freePage.add(new Integer(i));
+		frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+		
+		pipeSize = Config.getInteger("Kernel.pipeSize", 4096);
+
+		minPriority = Config.getInteger("Kernel.minPriority",
+				PriorityScheduler.priorityMinimum);
+		maxPriority = Config.getInteger("Kernel.maxPriority",
+				PriorityScheduler.priorityMaximum);
+		Lib.assertTrue(PriorityScheduler.priorityMinimum <= minPriority
+				&& minPriority <= maxPriority
+				&& maxPriority <= PriorityScheduler.priorityMaximum);
+
+		coffCache = new CoffCache(Config.getInteger("Kernel.coffCacheSize", 4));
+
+		if (Config.getBoolean("Kernel.syscallTrace", false)) {
+			syscallTracer = new SyscallTracer(Config.getInteger(
+					"Kernel.syscallTraceSize", 1024));
 		}
 	}
 
@@ -71,40 +82,6 @@ public class UserKernel extends ThreadedKernel {
 		return ((UThread) KThread.currentThread()).process;
 	}
 	
-	//Phase 2 Task 2 page management
-	static int freePageCount() {
-		return freePage.size();
-	}
-	
-	static void releasePage(int ppn) {
-		pageLock.acquire();
-		freePage.add(new Integer(ppn));
-		pageLock.release();
-	}
-	
-	static int[] allocatePage(int size) {
-		pageLock.acquire();
-		if (freePage.size() < size) {
-			pageLock.release();
-			return null;
-		}
-		int[] result = new int[size];
-		for (int count = 0; size > 0; size--) {
-			 Integer ppn = (Integer)freePage.removeFirst();
-			 if (ppn == null) {
-				 for (int i = 0; i < count; ++i) {
-					 freePage.add(new Integer(result[i]));
-				 }
-				 pageLock.release();
-				 return null;
-			 }
-			 result[count++] = ppn.intValue();
-		}
-		
-		pageLock.release();
-		return result;
-	}
-
 	/**
 	 * The exception handler. This handler is called by the processor whenever a
 	 * user instruction causes a processor exception.
@@ -121,9 +98,14 @@ public class UserKernel extends ThreadedKernel {
 	public void exceptionHandler() {
 		Lib.assertTrue(KThread.currentThread() instanceof UThread);
 
-		UserProcess process = ((UThread) KThread.currentThread()).process;
+		UThread thread = (UThread) KThread.currentThread();
+		UserProcess process = thread.process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
+		thread.enterKernel();
+		process.checkExiting();
 		process.handleException(cause);
+		process.checkExiting();
+		thread.exitKernel();
 	}
 
 	/**
@@ -149,14 +131,41 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (syscallTracer != null) {
+			syscallTracer.print();
+
+			String traceFile = Config.getString("Kernel.syscallTraceFile");
+			if (traceFile != null && !syscallTracer.export(traceFile))
+				System.out.println("unable to export syscall trace to " + traceFile);
+		}
+
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/**
+	 * Globally accessible reference to the syscall tracer, or <tt>null</tt> if
+	 * tracing is disabled.
+	 */
+	public static SyscallTracer syscallTracer = null;
+
+	/** Globally accessible reference to the physical frame allocator. */
+	public static FrameAllocator frameAllocator;
+
+	/** The number of bytes buffered by each pipe. */
+	public static int pipeSize;
+
+	/** The lowest priority a user process can ask for. */
+	public static int minPriority;
+
+	/** The highest priority a user process can ask for. */
+	public static int maxPriority;
+
+	/** Globally accessible reference to the executable cache. */
+	public static CoffCache coffCache;
+
 	//phase 2 task 2
 	static UserProcess rootProcess = null;
-	private static Lock pageLock;
-	private static LinkedList freePage;
 }
@@ -10,6 +10,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -30,6 +31,8 @@ public class UserProcess {
 	public UserProcess() {
 		processID = processCount++;
 		aliveCount++;
+		priority = Math.max(UserKernel.minPriority, Math.min(
+				UserKernel.maxPriority, PriorityScheduler.priorityDefault));
 		
 		descriptor.put(UserKernel.console.openForReading(), 0);
 		descriptor.put(UserKernel.console.openForWriting(), 1);
@@ -150,30 +153,7 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
-		// virtual address in that start virtual page
-		int startVAddr = Processor.offsetFromAddress(vaddr);
-		// Virtual Page num intervals [VPNStart, VPNEnd]
-		int VPNStart = Processor.pageFromAddress(vaddr);
-		int amount = 0;
-		for (int vpn = VPNStart; length > 0; ++vpn) {
-			// do copy
-			int len = Math.min(length - amount, pageSize - startVAddr);
-			TranslationEntry PP = getPP(vpn, false);
-			if (PP == null) {
-				return amount;
-			}
-			System.arraycopy(memory, Processor.makeAddress(PP.ppn, startVAddr), data, offset, len);
-			offset += len;
-			amount += len;
-			length -= len;
-			
-			//clear start virtual address
-			startVAddr = 0;
-		}
-
-		return amount;
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -213,34 +193,80 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	// pin as many pages of the range as possible, then copy each run of
+	// physically contiguous frames at once
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean write) {
 		byte[] memory = Machine.processor().getMemory();
 
-		// virtual address in that start virtual page
-		int startVAddr = Processor.offsetFromAddress(vaddr);
-		// Virtual Page num intervals [VPNStart, VPNEnd]
-		int VPNStart = Processor.pageFromAddress(vaddr);
 		int amount = 0;
-		for (int vpn = VPNStart; length > 0; ++vpn) {
-			// do copy
-			int len = Math.min(length - amount, pageSize - startVAddr);
-			//System.err.println(this.getClass());
-			TranslationEntry PP = getPP(vpn, true);
-			// exception
-			if (PP == null) {
-				return amount;
+		while (length > 0) {
+			int firstVPN = Processor.pageFromAddress(vaddr);
+			int pageOffset = Processor.offsetFromAddress(vaddr);
+			int count = (int) (((long) pageOffset + length + pageSize - 1) / pageSize);
+
+			int[] frames = pinPages(firstVPN, count, write);
+			int copied = 0;
+			for (int i = 0; i < frames.length; ) {
+				int run = 1;
+				while (i + run < frames.length && frames[i + run] == frames[i] + run) {
+					run++;
+				}
+				int paddr = Processor.makeAddress(frames[i], pageOffset);
+				int len = Math.min(length - copied, run * pageSize - pageOffset);
+				if (write) {
+					System.arraycopy(data, offset + copied, memory, paddr, len);
+				} else {
+					System.arraycopy(memory, paddr, data, offset + copied, len);
+				}
+				copied += len;
+				pageOffset = 0;
+				i += run;
 			}
-			System.arraycopy(data, offset, memory, Processor.makeAddress(PP.ppn, startVAddr), len);
-			offset += len;
-			amount += len;
-			length -= len;
-			
-			//clear start virtual address
-			startVAddr = 0;
+			unpinPages(frames);
+
+			amount += copied;
+			if (frames.length == 0) {
+				break;
+			}
+			vaddr += copied;
+			offset += copied;
+			length -= copied;
 		}
 
 		return amount;
 	}
-	
+
+	/**
+	 * Translate a run of virtual pages for a copy by the kernel, and keep them
+	 * resident until <tt>unpinPages()</tt> is called. The run stops early at
+	 * the first page that is invalid, or read-only when <i>write</i> is set,
+	 * and may stop earlier when too many pages are pinned.
+	 *
+	 * @return the physical page numbers of the pages translated, in order;
+	 *         empty only if the first page cannot be translated.
+	 */
+	protected int[] pinPages(int firstVPN, int count, boolean write) {
+		int[] frames = new int[count];
+		int pinned = 0;
+		for (; pinned < count; ++pinned) {
+			TranslationEntry entry = getPP(firstVPN + pinned, write);
+			if (entry == null) {
+				break;
+			}
+			frames[pinned] = entry.ppn;
+		}
+		return Arrays.copyOf(frames, pinned);
+	}
+
+	/**
+	 * Release the pages translated by <tt>pinPages()</tt>.
+	 */
+	protected void unpinPages(int[] frames) {
+	}
+
 	// Phase 2 Task 2
 	public TranslationEntry getPP(int vpn, boolean writeBit) {
 		if (vpn >= pageTable.length) {
@@ -269,19 +295,16 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
 		try {
-			coff = new Coff(executable);
+			coff = UserKernel.coffCache.open(name);
 		} catch (EOFException e) {
-			executable.close();
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
+		if (coff == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return false;
+		}
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -357,7 +380,17 @@ public class UserProcess {
 	
 	// Phase 2 task 2
 	protected boolean loadSections() {
-		int[] ppList = UserKernel.allocatePage(numPages);
+		// prefer a physically contiguous image, but any free frames will do
+		int[] ppList;
+		int first = UserKernel.frameAllocator.allocateContiguous(numPages);
+		if (first != -1) {
+			ppList = new int[numPages];
+			for (int i = 0; i < numPages; ++i) {
+				ppList[i] = first + i;
+			}
+		} else {
+			ppList = UserKernel.frameAllocator.allocate(numPages);
+		}
 		if (ppList == null) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
@@ -397,9 +430,11 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		int[] ppList = new int[numPages];
 		for (int i = 0; i < numPages; ++i) {
-			UserKernel.releasePage(pageTable[i].ppn);
+			ppList[i] = pageTable[i].ppn;
 		}
+		UserKernel.frameAllocator.free(ppList, numPages);
 		pageTable = null;
 		coff.close();
 	}
@@ -427,6 +462,123 @@ public class UserProcess {
 		processor.writeRegister(Processor.regA1, argv);
 	}
 
+	/**
+	 * Start running the specified child of this process in a new thread, which
+	 * begins with the specified user registers instead of at the entry point
+	 * of the program. Used to implement fork().
+	 * 
+	 * @return the process ID of the child.
+	 */
+	protected int forkChild(UserProcess child, int[] registers) {
+		childProcess.put(new Integer(child.processID), child);
+		child.priority = priority;
+
+		child.thread = new UThread(child, registers).setName(KThread
+				.currentThread().getName());
+		child.thread.fork();
+
+		return child.processID;
+	}
+
+	/**
+	 * Give this process its own copy of every disk file open in the specified
+	 * process, under the same descriptor and at the same position. Used to
+	 * implement fork().
+	 */
+	protected void copyDescriptors(UserProcess parent) {
+		int[] list = parent.descriptor.getAll();
+		for (int i = 0; i < list.length; ++i) {
+			OpenFile file = parent.descriptor.get(list[i]);
+			if (Pipe.isPipe(file)) {
+				descriptor.put(Pipe.duplicate(file), list[i]);
+				continue;
+			}
+			// the console is already open in every process
+			if (file.getFileSystem() == null) {
+				continue;
+			}
+			OpenFile copy = UserKernel.fileSystem.open(file.getName(), false);
+			if (copy == null) {
+				continue;
+			}
+			copy.seek(file.tell());
+			descriptor.put(copy, list[i]);
+			fileStore.put(copy.getName(), copy);
+		}
+	}
+
+	/**
+	 * Give this process its own reference to every pipe end open in the
+	 * specified process, under the same descriptor. Used to let the children
+	 * created by exec() communicate through the pipes of their parent.
+	 */
+	private void inheritPipes(UserProcess parent) {
+		int[] list = parent.descriptor.getAll();
+		for (int i = 0; i < list.length; ++i) {
+			OpenFile file = parent.descriptor.get(list[i]);
+			if (Pipe.isPipe(file)) {
+				descriptor.put(Pipe.duplicate(file), list[i]);
+			}
+		}
+	}
+
+	/**
+	 * Add the specified number of pages at the end of the address
+	 * space of this process. Used to give a new thread its stack.
+	 *
+	 * @return the first of the new pages, or -1 if memory is exhausted.
+	 */
+	protected int allocateStack(int pages) {
+		int[] ppList = UserKernel.frameAllocator.allocate(pages);
+		if (ppList == null) {
+			return -1;
+		}
+		byte[] memory = Machine.processor().getMemory();
+		TranslationEntry[] table = new TranslationEntry[numPages + pages];
+		System.arraycopy(pageTable, 0, table, 0, numPages);
+		for (int i = 0; i < pages; ++i) {
+			int vpn = numPages + i;
+			table[vpn] = new TranslationEntry(vpn, ppList[i], true, false, false, false);
+			Arrays.fill(memory, Processor.makeAddress(ppList[i], 0),
+					Processor.makeAddress(ppList[i], 0) + pageSize, (byte) 0);
+		}
+		pageTable = table;
+		Machine.processor().setPageTable(pageTable);
+
+		int first = numPages;
+		numPages += pages;
+		return first;
+	}
+
+	/**
+	 * Make every other thread of this process trap into the kernel as soon
+	 * as it runs user code again, so that <tt>checkExiting()</tt> can stop it.
+	 */
+	protected void stopUserThreads() {
+		for (int i = 0; i < numPages; ++i) {
+			pageTable[i].valid = false;
+		}
+	}
+
+	/**
+	 * Called by the exception handler before and after handling every
+	 * exception. Once the main thread of this process has called exit(), any
+	 * other thread of the process ends here.
+	 */
+	public void checkExiting() {
+		UThread current = (UThread) KThread.currentThread();
+		if (exiting && current.threadID != 0) {
+			finishThread(current, -1);
+		}
+	}
+
+	private void finishThread(UThread current, int status) {
+		threadStatus.put(new Integer(current.threadID), new Integer(status));
+		freeStacks.add(new Integer(current.stackVPN));
+
+		UThread.finish();
+	}
+
 	/**
 	 * Handle the halt() system call.
 	 */
@@ -435,6 +587,7 @@ public class UserProcess {
 			return 0;
 		}
 
+		UserKernel.console.flush();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -444,7 +597,11 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallPipe = 23, syscallRingSetup = 24,
+			syscallRingSubmit = 25, syscallPoll = 26, syscallGetrusage = 27,
+			syscallThreadCreate = 28, syscallThreadJoin = 29,
+			syscallFutexWait = 30, syscallFutexWake = 31,
+			syscallSetpriority = 35, syscallGetpriority = 36;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -498,6 +655,50 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>23</td>
+	 * <td><tt>int  pipe(int *fds);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>24</td>
+	 * <td><tt>int  ring_setup(void *ring, int entries);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>25</td>
+	 * <td><tt>int  ring_submit(int waitFor);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>26</td>
+	 * <td><tt>int  poll(int *fds, int nfds, int timeout);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>27</td>
+	 * <td><tt>int  getrusage(int who, int *usage);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>28</td>
+	 * <td><tt>int  thread_create(int (*func)(void *), void *arg);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>29</td>
+	 * <td><tt>int  thread_join(int tid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>30</td>
+	 * <td><tt>int  futex_wait(int *addr, int value);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>31</td>
+	 * <td><tt>int  futex_wake(int *addr, int count);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>35</td>
+	 * <td><tt>int  setpriority(int processID, int priority);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>36</td>
+	 * <td><tt>int  getpriority(int processID);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall
@@ -540,6 +741,7 @@ public class UserProcess {
 		if (file == null) {
 			return -1;
 		}
+		UserKernel.coffCache.invalidate(name);
 		int newDes = descriptor.getFree();
 		descriptor.put(file, newDes);
 		fileStore.put(name, file);
@@ -605,7 +807,11 @@ public class UserProcess {
 		}
 		byte[] tmp = new byte[size];
 		int length = file.read(tmp, 0, size);
+		if (length <= 0) {
+			return length;
+		}
 		int count = this.writeVirtualMemory(addr, tmp, 0, length);
+		usage.bytesRead += count;
 		return count;
 	}
 
@@ -640,6 +846,11 @@ public class UserProcess {
 			return -1;
 		}
 		int count = file.write(tmp, 0, length);
+		usage.bytesWritten += Math.max(count, 0);
+		// only a file of the file system can be a cached executable
+		if (count > 0 && file.getFileSystem() != null) {
+			UserKernel.coffCache.invalidate(file.getName());
+		}
 		if (count < length) {
 			return -1;
 		}
@@ -677,7 +888,8 @@ public class UserProcess {
 			descriptor.remove(new Integer(fd));
 		}
 		file.close();
-		if (removeList.contains(name) && fileStore.get(name).length == 0) {
+		if (file.getFileSystem() != null && removeList.contains(name)
+				&& fileStore.get(name).length == 0) {
 			if (!UserKernel.fileSystem.remove(name)) {
 				return -1;
 			}
@@ -703,6 +915,7 @@ public class UserProcess {
 		if (name == null || name.length() > maxLength) {
 			return -1;
 		}
+		UserKernel.coffCache.invalidate(name);
 		if (fileStore.get(name).length == 0) {
 			if (!UserKernel.fileSystem.remove(name)) {
 				return -1;
@@ -713,6 +926,400 @@ public class UserProcess {
 		return 0;
 	}
 	
+	/**
+	 * Create a pipe, and store a file descriptor for its read end in fds[0]
+	 * and one for its write end in fds[1].
+	 *
+	 * Bytes written to the write end can be read from the read end, in order.
+	 * Unlike other streams, a read from an empty pipe waits until some bytes
+	 * are written, and returns 0 only once every write end has been closed.
+	 * A write waits until the pipe has room for all its bytes. Children
+	 * created by exec() start with the same pipe descriptors as their parent.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 */
+	private int handlePipe(int fdsPos) {
+		if (descriptor.freeCount() < 2) {
+			return -1;
+		}
+		Pipe pipe = new Pipe(UserKernel.pipeSize);
+		int readDes = descriptor.getFree();
+		descriptor.put(pipe.openForReading(), readDes);
+		int writeDes = descriptor.getFree();
+		descriptor.put(pipe.openForWriting(), writeDes);
+
+		byte[] fds = new byte[8];
+		Lib.bytesFromInt(fds, 0, readDes);
+		Lib.bytesFromInt(fds, 4, writeDes);
+		if (writeVirtualMemory(fdsPos, fds) < fds.length) {
+			handleClose(readDes);
+			handleClose(writeDes);
+			return -1;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Register the syscall ring of this process, at the specified address and
+	 * with the specified number of submission and completion entries (see
+	 * <tt>SyscallRing</tt> for its layout). A process has at most one ring.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 */
+	private int handleRingSetup(int ringPos, int entries) {
+		if (ring != null || entries <= 0 || entries > maxRingEntries) {
+			return -1;
+		}
+		SyscallRing newRing = new SyscallRing(this, ringPos, entries);
+		if (!newRing.start()) {
+			return -1;
+		}
+		ring = newRing;
+		return 0;
+	}
+
+	/**
+	 * Start executing the requests queued in the syscall ring, and wait until
+	 * its completion queue holds at least waitFor entries, or until no queued
+	 * request can make progress.
+	 *
+	 * Returns the number of requests submitted, or -1 if the process has no
+	 * ring.
+	 */
+	private int handleRingSubmit(int waitFor) {
+		if (ring == null) {
+			return -1;
+		}
+		return ring.submit(waitFor);
+	}
+	
+	/**
+	 * Wait until one of the specified file descriptors is ready.
+	 *
+	 * fds points to an array of nfds entries of three integers: a file
+	 * descriptor, the events to wait for (pollRead, pollWrite or both), and
+	 * the events found ready, which is filled in by poll(). Disk files are
+	 * always ready; invalid descriptors are reported as pollInvalid.
+	 *
+	 * timeout is the maximum number of ticks to wait; 0 checks the descriptors
+	 * without waiting, and a negative timeout waits forever.
+	 *
+	 * Returns the number of ready descriptors, 0 if the timeout expired, or -1
+	 * if an error occurred.
+	 */
+	private int handlePoll(int fdsPos, int nfds, int timeout) {
+		if (nfds < 0 || nfds > maxDescriptorCount) {
+			return -1;
+		}
+		byte[] entries = new byte[nfds * 12];
+		if (readVirtualMemory(fdsPos, entries) < entries.length) {
+			return -1;
+		}
+
+		Semaphore waiter = new Semaphore(0);
+		pollWaiters.add(waiter);
+		OpenFile[] files = new OpenFile[nfds];
+		for (int i = 0; i < nfds; ++i) {
+			files[i] = descriptor.get(Lib.bytesToInt(entries, i * 12));
+			if (files[i] instanceof Pollable) {
+				((Pollable) files[i]).addWaiter(waiter);
+			}
+		}
+		long deadline = Machine.timer().getTime() + timeout;
+		if (timeout > 0) {
+			ThreadedKernel.alarm.scheduleV(timeout, waiter);
+		}
+
+		// waiters are registered first, so no event is missed between checks
+		int ready = 0;
+		while (true) {
+			for (int i = 0; i < nfds; ++i) {
+				int events = Lib.bytesToInt(entries, i * 12 + 4);
+				int revents = 0;
+				if (files[i] == null) {
+					revents = pollInvalid;
+				} else if (files[i] instanceof Pollable) {
+					Pollable file = (Pollable) files[i];
+					if ((events & pollRead) != 0 && file.isReadable()) {
+						revents |= pollRead;
+					}
+					if ((events & pollWrite) != 0 && file.isWritable()) {
+						revents |= pollWrite;
+					}
+				} else {
+					revents = events & (pollRead | pollWrite);
+				}
+				Lib.bytesFromInt(entries, i * 12 + 8, revents);
+				if (revents != 0) {
+					++ready;
+				}
+			}
+			boolean expired = timeout == 0
+					|| timeout > 0 && Machine.timer().getTime() >= deadline;
+			if (ready > 0 || expired || exiting) {
+				break;
+			}
+			waiter.P();
+		}
+		if (timeout > 0) {
+			ThreadedKernel.alarm.cancel(waiter);
+		}
+		pollWaiters.remove(waiter);
+
+		for (int i = 0; i < nfds; ++i) {
+			if (files[i] instanceof Pollable) {
+				((Pollable) files[i]).removeWaiter(waiter);
+			}
+		}
+		if (writeVirtualMemory(fdsPos, entries) < entries.length) {
+			return -1;
+		}
+		return ready;
+	}
+	
+	/**
+	 * Store the resources used by this process (who is 0), or by all its
+	 * children that have been joined, along with their own joined children
+	 * (who is 1). usage points to nine integers: user ticks, kernel ticks,
+	 * syscalls, page faults, TLB misses, pages swapped in, pages swapped out,
+	 * bytes read and bytes written.
+	 *
+	 * Returns 0 on success, or -1 if an error occurred.
+	 */
+	private int handleGetrusage(int who, int usagePos) {
+		ResourceUsage result;
+		if (who == 0) {
+			((UThread) KThread.currentThread()).chargeUsage();
+			result = usage;
+		} else if (who == 1) {
+			result = childUsage;
+		} else {
+			return -1;
+		}
+		byte[] content = result.toBytes();
+		if (writeVirtualMemory(usagePos, content) < content.length) {
+			return -1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Return the resources used by this process so far.
+	 */
+	public ResourceUsage getResourceUsage() {
+		return usage;
+	}
+	
+	/**
+	 * Set the scheduling priority of the current process (processID is -1 or
+	 * its own ID) or of one of its children, and of every thread of that
+	 * process. Threads and processes started afterwards inherit the priority.
+	 * Under a lottery scheduler, the priority is the number of tickets held by
+	 * each thread.
+	 *
+	 * Returns 0 on success, or -1 if processID does not refer to the current
+	 * process or a child, or if priority is outside the bounds set by
+	 * Kernel.minPriority and Kernel.maxPriority.
+	 */
+	private int handleSetpriority(int processID, int priority) {
+		UserProcess target = getPriorityTarget(processID);
+		if (target == null) {
+			return -1;
+		}
+		if (priority < UserKernel.minPriority || priority > UserKernel.maxPriority) {
+			return -1;
+		}
+		target.setPriority(priority);
+		return 0;
+	}
+
+	/**
+	 * Return the scheduling priority of the current process (processID is -1
+	 * or its own ID) or of one of its children, or -1 if processID does not
+	 * refer to such a process.
+	 */
+	private int handleGetpriority(int processID) {
+		UserProcess target = getPriorityTarget(processID);
+		if (target == null) {
+			return -1;
+		}
+		return target.priority;
+	}
+
+	private UserProcess getPriorityTarget(int processID) {
+		if (processID == -1 || processID == this.processID) {
+			return this;
+		}
+		return (UserProcess) childProcess.get(new Integer(processID));
+	}
+
+	private void setPriority(int priority) {
+		this.priority = priority;
+
+		boolean intStatus = Machine.interrupt().disable();
+		if (thread != null) {
+			ThreadedKernel.scheduler.setPriority(thread, priority);
+		}
+		for (Iterator<UThread> it = threads.values().iterator(); it.hasNext(); ) {
+			ThreadedKernel.scheduler.setPriority(it.next(), priority);
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the scheduling priority given to the threads of this process.
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Start a new thread in the current process, running func(arg) on a stack
+	 * of its own. The thread shares the memory and file descriptors of the
+	 * process. It ends when func returns, or when it calls exit(); either way
+	 * the value returned or passed to exit() becomes its status. Calling
+	 * exit() from the thread that started the process ends the process,
+	 * stopping every other thread the next time it enters the kernel.
+	 *
+	 * Returns the thread ID, which can be passed to thread_join(), or -1 if
+	 * an error occurred.
+	 */
+	private int handleThreadCreate(int func, int arg) {
+		if (exiting) {
+			return -1;
+		}
+		int stackVPN = freeStacks.isEmpty() ? allocateStack(stackPages)
+				: freeStacks.removeFirst().intValue();
+		if (stackVPN == -1) {
+			return -1;
+		}
+
+		// when func returns, jump to exit(v0) at the top of the stack
+		int stackTop = (stackVPN + stackPages) * pageSize;
+		int trampoline = stackTop - 16;
+		byte[] code = new byte[12];
+		Lib.bytesFromInt(code, 0, 0x00402021);	// addu a0, v0, zero
+		Lib.bytesFromInt(code, 4, 0x24020001);	// addiu v0, zero, 1
+		Lib.bytesFromInt(code, 8, 0x0000000c);	// syscall
+		if (writeVirtualMemory(trampoline, code) < code.length) {
+			freeStacks.add(new Integer(stackVPN));
+			return -1;
+		}
+
+		int[] registers = new int[Processor.numUserRegisters];
+		registers[Processor.regPC] = func;
+		registers[Processor.regNextPC] = func + 4;
+		registers[Processor.regA0] = arg;
+		registers[Processor.regSP] = trampoline - 16;
+		registers[Processor.regRA] = trampoline;
+
+		UThread newThread = new UThread(this, registers);
+		newThread.threadID = nextThreadID++;
+		newThread.stackVPN = stackVPN;
+		newThread.setName(thread.getName() + " thread " + newThread.threadID);
+		threads.put(new Integer(newThread.threadID), newThread);
+		newThread.fork();
+
+		return newThread.threadID;
+	}
+
+	/**
+	 * Wait for the specified thread of the current process to end, and store
+	 * its status at the specified address, unless the address is 0. A thread
+	 * can be joined only once, and not by itself.
+	 *
+	 * Returns 0 on success, or -1 if tid does not refer to a thread that can
+	 * be joined.
+	 */
+	private int handleThreadJoin(int tid, int statusPos) {
+		// a thread cannot join itself
+		UThread target = threads.get(new Integer(tid));
+		if (target == null || tid == ((UThread) KThread.currentThread()).threadID) {
+			return -1;
+		}
+		threads.remove(new Integer(tid));
+		target.join();
+
+		int status = threadStatus.remove(new Integer(tid)).intValue();
+		if (statusPos != 0) {
+			writeVirtualMemory(statusPos, Lib.bytesFromInt(status));
+		}
+		return 0;
+	}
+
+	/**
+	 * If the integer at addr still holds value, sleep until another thread
+	 * calls futex_wake() on the same address. The check and the sleep are
+	 * atomic with respect to futex_wake(), as both hold futexLock; reading
+	 * the integer may block, so disabling interrupts is not enough.
+	 *
+	 * Returns 0 once woken, or -1 if the integer did not hold value or addr
+	 * is invalid.
+	 */
+	private int handleFutexWait(int addr, int value) {
+		if (exiting) {
+			return -1;
+		}
+		futexLock.acquire();
+		byte[] word = new byte[4];
+		if (readVirtualMemory(addr, word) < word.length
+				|| Lib.bytesToInt(word, 0) != value) {
+			futexLock.release();
+			return -1;
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadQueue queue = futexQueues.get(new Integer(addr));
+		if (queue == null) {
+			queue = ThreadedKernel.scheduler.newThreadQueue(false);
+			futexQueues.put(new Integer(addr), queue);
+		}
+		queue.waitForAccess(KThread.currentThread());
+		futexLock.release();
+		KThread.sleep();
+		Machine.interrupt().restore(intStatus);
+		return 0;
+	}
+
+	/**
+	 * Wake up to count threads sleeping in futex_wait() on addr.
+	 *
+	 * Returns the number of threads woken.
+	 */
+	private int handleFutexWake(int addr, int count) {
+		futexLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadQueue queue = futexQueues.get(new Integer(addr));
+		int woken = 0;
+		KThread waiter;
+		while (queue != null && woken < count && (waiter = queue.nextThread()) != null) {
+			waiter.ready();
+			++woken;
+		}
+		Machine.interrupt().restore(intStatus);
+		futexLock.release();
+		return woken;
+	}
+	
+	private void closeDescriptors() {
+	 	//Any open file descriptors belonging to the process are close
+		int[] list = descriptor.getAll();
+		for (int i = 0; i < list.length; ++i) {
+			handleClose(list[i]);
+		}
+	}
+
+	private void wakeAllFutexes() {
+		boolean intStatus = Machine.interrupt().disable();
+		for (Iterator<ThreadQueue> it = futexQueues.values().iterator(); it.hasNext(); ) {
+			ThreadQueue queue = it.next();
+			KThread waiter;
+			while ((waiter = queue.nextThread()) != null) {
+				waiter.ready();
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+	
 	/**
 	 * Terminate the current process immediately. Any open file descriptors
 	 * belonging to the process are closed. Any children of the process no longer
@@ -725,17 +1332,42 @@ public class UserProcess {
 	 * exit() never returns.
 	 */
 	private int handleExit(int status) {
+		UThread current = (UThread) KThread.currentThread();
+		if (current.threadID != 0) {
+			finishThread(current, status);
+		}
+
+		// stop every other thread before tearing down the address space.
+		// Closing the descriptors ends the pipe reads and writes they, or
+		// the ring worker, may be blocked in
+		exiting = true;
+		stopUserThreads();
+		wakeAllFutexes();
+		closeDescriptors();
+		for (Iterator<Semaphore> it = pollWaiters.iterator(); it.hasNext(); ) {
+			it.next().V();
+		}
+		UThread[] others = threads.values().toArray(new UThread[0]);
+		threads.clear();
+		for (int i = 0; i < others.length; ++i) {
+			others[i].join();
+		}
+
 		this.status = status;
-		
-	 	//Any open file descriptors belonging to the process are close
-		int[] list = descriptor.getAll();
-		for (int i = 0; i < list.length; ++i) {
-			handleClose(list[i]);
+
+		// the ring worker uses our memory
+		if (ring != null) {
+			ring.stop();
+			ring = null;
 		}
+
+		// descriptors opened since by the other threads or the ring worker
+		closeDescriptors();
 		
 		// need to free all pages
 		unloadSections();
 		
+		((UThread) KThread.currentThread()).chargeUsage();
 		aliveCount--;
 
 		if (aliveCount == 0) {
@@ -796,8 +1428,14 @@ public class UserProcess {
 		
 		UserProcess child = newUserProcess();
 		childProcess.put(new Integer(child.processID), child);
+		child.priority = priority;
+		child.inheritPipes(this);
 
 		if (!child.execute(name, args)) {//exit on error
+			int[] list = child.descriptor.getAll();
+			for (int i = 0; i < list.length; ++i) {
+				child.handleClose(list[i]);
+			}
 			childProcess.remove(new Integer(child.processID));
 			aliveCount--;
 			return -1;
@@ -829,6 +1467,9 @@ public class UserProcess {
 		}
 		UserProcess child = (UserProcess)childProcess.get(new Integer(processID));
 		child.thread.join();
+		childProcess.remove(new Integer(processID));
+		childUsage.add(child.usage);
+		childUsage.add(child.childUsage);
 		
 		byte[] content = Lib.bytesFromInt(child.status);
 		this.writeVirtualMemory(statusPos, content);
@@ -841,47 +1482,70 @@ public class UserProcess {
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
 		case syscallHalt: {
-			System.err.println(this.processID + " " + "syscallHalt");
 			return handleHalt();
 		}
 		//Phase 2 Task 1: 
 		case syscallCreate: {
-			System.err.println(this.processID + " " + "syscallCreate");
 			return handleCreate(a0);
 		}
 		case syscallOpen: {
-			System.err.println(this.processID + " " + "syscallOpen");
 			return handleOpen(a0);
 		}
 		case syscallRead: {
-			System.err.println(this.processID + " " + "syscallRead");
 			return handleRead(a0, a1, a2);
 		}
 		case syscallWrite: {
-			System.err.println(this.processID + " " + "syscallWrite");
 			return handleWrite(a0, a1, a2);
 		}
 		case syscallClose: {
-			System.err.println(this.processID + " " + "syscallClose");
 			return handleClose(a0);
 		}
 		case syscallUnlink: {
-			System.err.println(this.processID + " " + "syscallUnlink");
 			return handleUnlink(a0);
 		}
 		//Phase 2 Task 3:
 		case syscallExit: {
-			System.err.println(this.processID + " " + "syscallExit");
 			return handleExit(a0);
 		}
 		case syscallExec: {
-			System.err.println(this.processID + " " + "syscallExec");
 			return handleExec(a0, a1, a2);
 		}
 		case syscallJoin: {
-			System.err.println(this.processID + " " + "syscallJoin");
 			return handleJoin(a0, a1);
 		}
+		case syscallPipe: {
+			return handlePipe(a0);
+		}
+		case syscallRingSetup: {
+			return handleRingSetup(a0, a1);
+		}
+		case syscallRingSubmit: {
+			return handleRingSubmit(a0);
+		}
+		case syscallPoll: {
+			return handlePoll(a0, a1, a2);
+		}
+		case syscallGetrusage: {
+			return handleGetrusage(a0, a1);
+		}
+		case syscallThreadCreate: {
+			return handleThreadCreate(a0, a1);
+		}
+		case syscallThreadJoin: {
+			return handleThreadJoin(a0, a1);
+		}
+		case syscallFutexWait: {
+			return handleFutexWait(a0, a1);
+		}
+		case syscallFutexWake: {
+			return handleFutexWake(a0, a1);
+		}
+		case syscallSetpriority: {
+			return handleSetpriority(a0, a1);
+		}
+		case syscallGetpriority: {
+			return handleGetpriority(a0);
+		}
 			
 
 		default:
@@ -903,11 +1567,25 @@ public class UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
-					processor.readRegister(Processor.regA0), processor
-							.readRegister(Processor.regA1), processor
-							.readRegister(Processor.regA2), processor
-							.readRegister(Processor.regA3));
+			int syscall = processor.readRegister(Processor.regV0);
+			int a0 = processor.readRegister(Processor.regA0);
+			int a1 = processor.readRegister(Processor.regA1);
+			int a2 = processor.readRegister(Processor.regA2);
+			int a3 = processor.readRegister(Processor.regA3);
+
+			SyscallTracer tracer = UserKernel.syscallTracer;
+			long startTick = 0, traceID = 0;
+			if (tracer != null) {
+				startTick = Machine.timer().getTime();
+				traceID = tracer.enter(processID, syscall, a0, a1, a2, a3);
+			}
+			usage.syscalls++;
+
+			int result = handleSyscall(syscall, a0, a1, a2, a3);
+
+			if (tracer != null)
+				tracer.exit(traceID, syscall, startTick, result);
+
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;
@@ -969,6 +1647,30 @@ public class UserProcess {
 	
 	private static int maxLength = 256;
 	private static int maxDescriptorCount = 256;
+	private static int maxRingEntries = 1024;
+	private static final int pollRead = 1, pollWrite = 2, pollInvalid = 4;
+	
+	private SyscallRing ring = null;
+
+	private int priority;
+
+	protected ResourceUsage usage = new ResourceUsage();
+	private ResourceUsage childUsage = new ResourceUsage();
+
+	// threads created by thread_create(), and not yet joined
+	private HashMap<Integer, UThread> threads = new HashMap<Integer, UThread>();
+	// status of the threads that have ended, until joined
+	private HashMap<Integer, Integer> threadStatus = new HashMap<Integer, Integer>();
+	private LinkedList<Integer> freeStacks = new LinkedList<Integer>();
+	private int nextThreadID = 1;
+	private boolean exiting = false;
+
+	// futex address mapped to the threads waiting on it
+	private HashMap<Integer, ThreadQueue> futexQueues = new HashMap<Integer, ThreadQueue>();
+	// held by futex_wait() from its check until it is queued, and by futex_wake()
+	private Lock futexLock = new Lock();
+	// semaphores of the threads blocked in poll(), woken on exit
+	private HashSet<Semaphore> pollWaiters = new HashSet<Semaphore>();
 	
 	private HashSet removeList = new HashSet();
 	
@@ -987,6 +1689,10 @@ public class UserProcess {
 			return !free.isEmpty();
 		}
 		
+		int freeCount() {
+			return free.size();
+		}
+		
 		int getFree() {
 			return (Integer)free.iterator().next();
 		}
@@ -1064,9 +1770,8 @@ public class UserProcess {
 		void remove(OpenFile file) {
 			String name = file.getName();
 			ArrayList list = (ArrayList)fileTable.get(name);
-			list.remove(file);
 			if (list != null) {
-				list.remove(name);
+				list.remove(file);
 			}
 		}
 		
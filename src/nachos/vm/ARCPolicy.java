@@ -0,0 +1,121 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive replacement, in its clock form (CAR). Frames holding pages seen
+ * once since they were brought in are kept in the recency list T1, and frames
+ * referenced again are moved to the frequency list T2. Pages evicted from
+ * either list are remembered in the ghost lists B1 and B2. A fault on a page
+ * in B1 means T1 was too small, and a fault on a page in B2 that T2 was too
+ * small; the target size of T1 moves accordingly.
+ *
+ * <p>
+ * Both lists are swept like clocks: a referenced frame at the head is given a
+ * second chance at the tail of T2, and an unreferenced one is evicted.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+	public ARCPolicy() {
+	}
+
+	public void init(PageScheduler scheduler, int numFrames) {
+		this.scheduler = scheduler;
+		capacity = numFrames;
+		target = 0;
+		pageOf = new long[numFrames];
+		referenced = new boolean[numFrames];
+	}
+
+	public void pageIn(int ppn, long page) {
+		Long key = new Long(page);
+		pageOf[ppn] = page;
+		referenced[ppn] = false;
+
+		if (b1.contains(key)) {
+			target = Math.min(target + Math.max(1, b2.size() / b1.size()), capacity);
+			b1.remove(key);
+			t2.add(new Integer(ppn));
+		} else if (b2.contains(key)) {
+			target = Math.max(target - Math.max(1, b1.size() / b2.size()), 0);
+			b2.remove(key);
+			t2.add(new Integer(ppn));
+		} else {
+			// keep the history within twice the number of frames
+			if (t1.size() + b1.size() >= capacity && !b1.isEmpty()) {
+				removeFirst(b1);
+			} else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * capacity
+					&& !b2.isEmpty()) {
+				removeFirst(b2);
+			}
+			t1.add(new Integer(ppn));
+		}
+	}
+
+	public void reference(int ppn) {
+		referenced[ppn] = true;
+	}
+
+	public void remove(int ppn) {
+		Integer frame = new Integer(ppn);
+		t1.remove(frame);
+		t2.remove(frame);
+	}
+
+	public int getVictim() {
+		// pinned frames are moved to the tail, and a list is passed over once
+		// every frame in it has been skipped
+		int skipped1 = 0, skipped2 = 0;
+		while (true) {
+			if (t1.size() <= skipped1 && t2.size() <= skipped2) {
+				return -1;
+			}
+			boolean recent = t1.size() > skipped1
+					&& (t1.size() >= Math.max(1, target) || t2.size() <= skipped2);
+			LinkedHashSet<Integer> list = recent ? t1 : t2;
+			Integer frame = list.iterator().next();
+			int ppn = frame.intValue();
+			list.remove(frame);
+
+			if (scheduler.isPinned(ppn)) {
+				list.add(frame);
+				if (recent) {
+					skipped1++;
+				} else {
+					skipped2++;
+				}
+				continue;
+			}
+			if (referenced[ppn]) {
+				referenced[ppn] = false;
+				t2.add(frame);
+				continue;
+			}
+
+			LinkedHashSet<Long> ghosts = recent ? b1 : b2;
+			ghosts.add(new Long(pageOf[ppn]));
+			if (ghosts.size() > capacity) {
+				removeFirst(ghosts);
+			}
+			return ppn;
+		}
+	}
+
+	private static void removeFirst(LinkedHashSet<Long> list) {
+		Iterator<Long> it = list.iterator();
+		it.next();
+		it.remove();
+	}
+
+	private PageScheduler scheduler;
+	private int capacity;
+	// target size of T1
+	private int target;
+	private long[] pageOf;
+	private boolean[] referenced;
+
+	private LinkedHashSet<Integer> t1 = new LinkedHashSet<Integer>();
+	private LinkedHashSet<Integer> t2 = new LinkedHashSet<Integer>();
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+	private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+}
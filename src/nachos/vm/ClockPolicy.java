@@ -0,0 +1,53 @@
+package nachos.vm;
+
+/**
+ * The clock algorithm: a hand sweeps the frames in order, evicting the first
+ * one whose reference bit is clear, and clearing the bits it passes.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	public ClockPolicy() {
+	}
+
+	public void init(PageScheduler scheduler, int numFrames) {
+		this.scheduler = scheduler;
+		resident = new boolean[numFrames];
+		referenced = new boolean[numFrames];
+		hand = 0;
+	}
+
+	public void pageIn(int ppn, long page) {
+		resident[ppn] = true;
+		referenced[ppn] = true;
+	}
+
+	public void reference(int ppn) {
+		referenced[ppn] = true;
+	}
+
+	public void remove(int ppn) {
+		resident[ppn] = false;
+	}
+
+	// the first sweep may only clear reference bits, the second finds a frame
+	// unless all are pinned
+	public int getVictim() {
+		for (int i = 0; i < 2 * resident.length; ++i) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+			if (!resident[ppn] || scheduler.isPinned(ppn)) {
+				continue;
+			}
+			if (!referenced[ppn]) {
+				resident[ppn] = false;
+				return ppn;
+			}
+			referenced[ppn] = false;
+		}
+		return -1;
+	}
+
+	private PageScheduler scheduler;
+	private int hand;
+	private boolean[] resident;
+	private boolean[] referenced;
+}
@@ -0,0 +1,170 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The CLOCK-Pro algorithm. Resident pages are either hot or cold, and only
+ * cold pages are evicted. A new page starts cold, in a test period; if it is
+ * referenced again during the test period it becomes hot. A cold page evicted
+ * during its test period is remembered, and a fault on it while it is still
+ * remembered makes it hot at once and enlarges the target share of cold
+ * pages, since it should not have been evicted. A test period that ends
+ * without a fault shrinks the share instead.
+ *
+ * <p>
+ * A cold hand sweeps the frames to evict, and a hot hand sweeps them to
+ * demote hot pages that have not been referenced since it last passed,
+ * keeping the number of cold pages at the target.
+ */
+public class ClockProPolicy implements ReplacementPolicy {
+	public ClockProPolicy() {
+	}
+
+	public void init(PageScheduler scheduler, int numFrames) {
+		this.scheduler = scheduler;
+		numPages = numFrames;
+		coldTarget = Math.max(1, numFrames / 4);
+		state = new int[numFrames];
+		test = new boolean[numFrames];
+		referenced = new boolean[numFrames];
+		pageOf = new long[numFrames];
+		coldHand = 0;
+		hotHand = 0;
+	}
+
+	public void pageIn(int ppn, long page) {
+		pageOf[ppn] = page;
+		referenced[ppn] = false;
+		test[ppn] = false;
+
+		if (ghosts.remove(new Long(page))) {
+			coldTarget = Math.min(coldTarget + 1, numPages - 1);
+			state[ppn] = hot;
+			hotCount++;
+			balance();
+		} else {
+			state[ppn] = cold;
+			test[ppn] = true;
+			coldCount++;
+		}
+	}
+
+	public void reference(int ppn) {
+		referenced[ppn] = true;
+	}
+
+	public void remove(int ppn) {
+		if (state[ppn] == hot) {
+			hotCount--;
+		} else if (state[ppn] == cold) {
+			coldCount--;
+		}
+		state[ppn] = free;
+	}
+
+	public int getVictim() {
+		int scanned = 0;
+		while (true) {
+			// every cold frame is pinned or there is none
+			if (scanned >= numPages) {
+				if (!hasUnpinned()) {
+					return -1;
+				}
+				demote();
+				scanned = 0;
+			}
+			int ppn = coldHand;
+			coldHand = (coldHand + 1) % numPages;
+			scanned++;
+			if (state[ppn] != cold || scheduler.isPinned(ppn)) {
+				continue;
+			}
+
+			if (referenced[ppn]) {
+				referenced[ppn] = false;
+				if (test[ppn]) {
+					state[ppn] = hot;
+					test[ppn] = false;
+					coldCount--;
+					hotCount++;
+					balance();
+				} else {
+					test[ppn] = true;
+				}
+				continue;
+			}
+
+			if (test[ppn]) {
+				ghosts.add(new Long(pageOf[ppn]));
+				if (ghosts.size() > numPages) {
+					// the oldest test period ends without a fault
+					Iterator<Long> it = ghosts.iterator();
+					it.next();
+					it.remove();
+					coldTarget = Math.max(1, coldTarget - 1);
+				}
+			}
+			state[ppn] = free;
+			coldCount--;
+			return ppn;
+		}
+	}
+
+	private boolean hasUnpinned() {
+		for (int ppn = 0; ppn < numPages; ++ppn) {
+			if (state[ppn] != free && !scheduler.isPinned(ppn)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void balance() {
+		while (coldCount < coldTarget && hotCount > 0) {
+			demote();
+		}
+	}
+
+	// move the hot hand to the next unreferenced hot page and make it cold,
+	// ending the test periods of the cold pages it passes
+	private void demote() {
+		if (hotCount == 0) {
+			return;
+		}
+		while (true) {
+			int ppn = hotHand;
+			hotHand = (hotHand + 1) % numPages;
+			if (state[ppn] == cold) {
+				test[ppn] = false;
+			}
+			if (state[ppn] != hot) {
+				continue;
+			}
+			if (referenced[ppn]) {
+				referenced[ppn] = false;
+				continue;
+			}
+			state[ppn] = cold;
+			hotCount--;
+			coldCount++;
+			return;
+		}
+	}
+
+	private PageScheduler scheduler;
+	private int numPages;
+	private int coldTarget;
+	private int hotCount = 0, coldCount = 0;
+	private int coldHand, hotHand;
+
+	private int[] state;
+	private boolean[] test;
+	private boolean[] referenced;
+	private long[] pageOf;
+
+	// evicted cold pages still in their test period
+	private LinkedHashSet<Long> ghosts = new LinkedHashSet<Long>();
+
+	private static final int free = 0, cold = 1, hot = 2;
+}
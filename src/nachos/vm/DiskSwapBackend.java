@@ -0,0 +1,75 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Disk;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.SynchDisk;
+
+/**
+ * Keeps swapped pages in a partition of the raw disk, which is only present
+ * when <tt>Machine.realFileSystem</tt> is set. The partition starts at sector
+ * <tt>VM.swapFirstSector</tt> and takes <tt>VM.swapSectors</tt> sectors, the
+ * rest of the disk by default, so it must not overlap a file system. Each
+ * access waits for the simulated seek and rotation of the disk.
+ */
+public class DiskSwapBackend implements SwapBackend {
+	public DiskSwapBackend() {
+	}
+
+	public void init(int pageSize) {
+		disk = Machine.synchDisk();
+		Lib.assertTrue(disk != null, "swapping to disk needs Machine.realFileSystem");
+		Lib.assertTrue(pageSize % Disk.SectorSize == 0);
+
+		firstSector = Config.getInteger("VM.swapFirstSector", 0);
+		int sectors = Config.getInteger("VM.swapSectors", Disk.NumSectors - firstSector);
+		Lib.assertTrue(firstSector >= 0 && sectors >= 0 && firstSector + sectors <= Disk.NumSectors);
+
+		sectorsPerPage = pageSize / Disk.SectorSize;
+		numSlots = sectors / sectorsPerPage;
+	}
+
+	// the sectors of a run are transferred in order, so the disk seeks at most
+	// once per track
+	public int read(int slot, int count, byte[] data, int offset) {
+		int sectors = Math.max(0, Math.min(count, length - slot)) * sectorsPerPage;
+		for (int i = 0; i < sectors; ++i) {
+			disk.readSector(getSector(slot) + i, data, offset + i * Disk.SectorSize);
+		}
+		return sectors * Disk.SectorSize;
+	}
+
+	public int write(int slot, int count, byte[] data, int offset) {
+		Lib.assertTrue(slot + count <= numSlots, "swap partition full");
+		int sectors = count * sectorsPerPage;
+		for (int i = 0; i < sectors; ++i) {
+			disk.writeSector(getSector(slot) + i, data, offset + i * Disk.SectorSize);
+		}
+		length = Math.max(length, slot + count);
+		return sectors * Disk.SectorSize;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	// the partition is fixed, only the end of the live slots moves
+	public void truncate(int slots) {
+		length = Math.min(length, slots);
+	}
+
+	public void close() {
+	}
+
+	private int getSector(int slot) {
+		return firstSector + slot * sectorsPerPage;
+	}
+
+	private SynchDisk disk;
+	private int firstSector;
+	private int sectorsPerPage;
+	private int numSlots;
+	// slots at or after this one were never written
+	private int length = 0;
+}
@@ -2,6 +2,7 @@
 package nachos.vm;
 
 import java.util.Arrays;
+import java.util.LinkedList;
 
 import nachos.machine.Coff;
 import nachos.machine.CoffSection;
@@ -9,6 +10,7 @@ import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
+import nachos.userprog.UserKernel;
 
 public class LazyLoader {
 	public LazyLoader() {
@@ -17,6 +19,7 @@ public class LazyLoader {
 	
 	public LazyLoader(Coff coffFile) {
 		coff = coffFile;
+		imageID = UserKernel.coffCache.getImageID(coff);
 		
 		int sectionCount = coff.getNumSections();
 		
@@ -47,15 +50,85 @@ public class LazyLoader {
 			entry = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
 			section.loadPage(pageSectionOffset[vpn], ppn);
 		} else {
-			entry = new TranslationEntry(vpn, ppn, true, false, false, false); 
-			//byte[] buf = new byte[Processor.pageSize];
-			//Arrays.fill(buf, (byte)0);
-			//System.arraycopy(buf, 0, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
+			entry = new TranslationEntry(vpn, ppn, true, false, false, false);
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, Processor.makeAddress(ppn, 0), Processor.makeAddress(ppn, 0) + Processor.pageSize, (byte) 0);
 		}
 		return entry;
 	}
+
+	// writable pages of uninitialized sections, the stack and the arguments
+	// start out as zeros
+	public boolean isZeroFill(int vpn) {
+		if (vpn < 0 || vpn >= numPages) {
+			return true;
+		}
+		CoffSection section = coff.getSection(pageSectionNum[vpn]);
+		return !section.isInitialzed() && !section.isReadOnly();
+	}
+	
+	// pages of read-only sections are identical in every process running the
+	// same cached image, so they can share one frame
+	public Pair getShareKey(int vpn) {
+		if (imageID < 0 || vpn < 0 || vpn >= numPages) {
+			return null;
+		}
+		if (!coff.getSection(pageSectionNum[vpn]).isReadOnly()) {
+			return null;
+		}
+		return new Pair(imageID, vpn);
+	}
 	
+	// pages attached from a shared memory segment are the segment's pages
+	public void attach(int firstVPN, int segmentID) {
+		segments.add(new int[] { firstVPN,
+				VMKernel.sharedMemory.getNumPages(segmentID), segmentID });
+	}
+
+	// returns the segment that was attached at firstVPN, or -1
+	public int detach(int firstVPN) {
+		for (int[] segment : segments) {
+			if (segment[0] == firstVPN) {
+				segments.remove(segment);
+				return segment[2];
+			}
+		}
+		return -1;
+	}
+
+	public int[] getAttachedVPNs() {
+		int[] result = new int[segments.size()];
+		int count = 0;
+		for (int[] segment : segments) {
+			result[count++] = segment[0];
+		}
+		return result;
+	}
+
+	public int getAttachedSegment(int firstVPN) {
+		for (int[] segment : segments) {
+			if (segment[0] == firstVPN) {
+				return segment[2];
+			}
+		}
+		return -1;
+	}
+
+	// returns (segment pseudo-process, page) for a page of an attached segment
+	public Pair getSegmentPage(int vpn) {
+		for (int[] segment : segments) {
+			if (vpn >= segment[0] && vpn < segment[0] + segment[1]) {
+				return new Pair(SharedMemory.getProcessID(segment[2]), vpn - segment[0]);
+			}
+		}
+		return null;
+	}
+
+	// attached segments as (first vpn, number of pages, segment ID)
+	private LinkedList<int[]> segments = new LinkedList<int[]>();
+
 	private Coff coff;
+	private int imageID = -1;
 	private int numPages;
 	private int sectionCount;
 	private int[] pageSectionNum;
@@ -0,0 +1,72 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Keeps swapped pages in host memory, copying them directly to and from
+ * physical memory. Each transfer waits <tt>VM.swapLatency</tt> ticks to model
+ * a fast swap device; with a latency of 0 it does not block at all.
+ */
+public class MemorySwapBackend implements SwapBackend {
+	public MemorySwapBackend() {
+	}
+
+	public void init(int pageSize) {
+		this.pageSize = pageSize;
+		latency = Config.getInteger("VM.swapLatency", 100);
+		Lib.assertTrue(latency >= 0);
+	}
+
+	public int read(int slot, int count, byte[] data, int offset) {
+		delay();
+		int i = 0;
+		for (; i < count && slot + i < pages.length && pages[slot + i] != null; ++i) {
+			System.arraycopy(pages[slot + i], 0, data, offset + i * pageSize, pageSize);
+		}
+		return i * pageSize;
+	}
+
+	public int write(int slot, int count, byte[] data, int offset) {
+		delay();
+		if (slot + count > pages.length) {
+			pages = Arrays.copyOf(pages, Math.max(slot + count, pages.length * 2));
+		}
+		for (int i = 0; i < count; ++i) {
+			if (pages[slot + i] == null) {
+				pages[slot + i] = new byte[pageSize];
+			}
+			System.arraycopy(data, offset + i * pageSize, pages[slot + i], 0, pageSize);
+		}
+		length = Math.max(length, slot + count);
+		return count * pageSize;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void truncate(int slots) {
+		Arrays.fill(pages, Math.min(slots, pages.length), pages.length, null);
+		length = Math.min(length, slots);
+	}
+
+	public void close() {
+		pages = new byte[0][];
+		length = 0;
+	}
+
+	private void delay() {
+		if (latency > 0) {
+			ThreadedKernel.alarm.waitUntil(latency);
+		}
+	}
+
+	private int pageSize;
+	private int latency;
+	private byte[][] pages = new byte[16][];
+	private int length = 0;
+}
@@ -0,0 +1,160 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nachos.machine.TranslationEntry;
+
+/**
+ * A set of records for pages of processes, each holding a translation entry
+ * and an <tt>int</tt> value. A record is found from its process ID and
+ * virtual page number through a <tt>PageMap</tt>, and the records of each
+ * process are linked together, so that every page of a process can be visited
+ * without looking at the pages of other processes.
+ */
+public class PageIndex {
+	/**
+	 * Allocate a new, empty index.
+	 */
+	public PageIndex() {
+		grow(16);
+	}
+
+	/**
+	 * Return the record of the specified page, or -1 if there is none.
+	 */
+	public int find(int processID, int vpn) {
+		return map.get(PageScheduler.getPage(processID, vpn));
+	}
+
+	/**
+	 * Add a record for the specified page, which must not have one yet. The
+	 * record starts with no entry and a value of 0.
+	 */
+	public int add(int processID, int vpn) {
+		if (freeRecord == -1) {
+			grow(entries.length * 2);
+		}
+		int record = freeRecord;
+		freeRecord = next[record];
+
+		owner[record] = processID;
+		vpns[record] = vpn;
+		values[record] = 0;
+		used[record] = true;
+
+		int first = first(processID);
+		next[record] = first;
+		prev[record] = -1;
+		if (first != -1) {
+			prev[first] = record;
+		}
+		heads.put(new Integer(processID), new Integer(record));
+		map.put(PageScheduler.getPage(processID, vpn), record);
+		return record;
+	}
+
+	/**
+	 * Remove the specified record.
+	 */
+	public void remove(int record) {
+		map.remove(PageScheduler.getPage(owner[record], vpns[record]));
+
+		if (prev[record] != -1) {
+			next[prev[record]] = next[record];
+		} else if (next[record] != -1) {
+			heads.put(new Integer(owner[record]), new Integer(next[record]));
+		} else {
+			heads.remove(new Integer(owner[record]));
+		}
+		if (next[record] != -1) {
+			prev[next[record]] = prev[record];
+		}
+
+		entries[record] = null;
+		used[record] = false;
+		next[record] = freeRecord;
+		freeRecord = record;
+	}
+
+	/**
+	 * Return the first record of the specified process, or -1 if it has none.
+	 */
+	public int first(int processID) {
+		Integer record = heads.get(new Integer(processID));
+		return record == null ? -1 : record.intValue();
+	}
+
+	/**
+	 * Return the record of the same process following the specified one, or
+	 * -1 if it is the last.
+	 */
+	public int next(int record) {
+		return next[record];
+	}
+
+	/**
+	 * Return the number of records that can exist without growing the index.
+	 * Records are numbered from 0 to this number.
+	 */
+	public int capacity() {
+		return entries.length;
+	}
+
+	public boolean isUsed(int record) {
+		return used[record];
+	}
+
+	public int getProcessID(int record) {
+		return owner[record];
+	}
+
+	public int getVPN(int record) {
+		return vpns[record];
+	}
+
+	public TranslationEntry getEntry(int record) {
+		return entries[record];
+	}
+
+	public void setEntry(int record, TranslationEntry entry) {
+		entries[record] = entry;
+	}
+
+	public int getValue(int record) {
+		return values[record];
+	}
+
+	public void setValue(int record, int value) {
+		values[record] = value;
+	}
+
+	// free records are linked through next
+	private void grow(int length) {
+		int old = entries == null ? 0 : entries.length;
+		entries = entries == null ? new TranslationEntry[length] : Arrays.copyOf(entries, length);
+		owner = owner == null ? new int[length] : Arrays.copyOf(owner, length);
+		vpns = vpns == null ? new int[length] : Arrays.copyOf(vpns, length);
+		values = values == null ? new int[length] : Arrays.copyOf(values, length);
+		used = used == null ? new boolean[length] : Arrays.copyOf(used, length);
+		next = next == null ? new int[length] : Arrays.copyOf(next, length);
+		prev = prev == null ? new int[length] : Arrays.copyOf(prev, length);
+		for (int i = length - 1; i >= old; --i) {
+			next[i] = freeRecord;
+			freeRecord = i;
+		}
+	}
+
+	private PageMap map = new PageMap();
+
+	private TranslationEntry[] entries;
+	private int[] owner;
+	private int[] vpns;
+	private int[] values;
+	private boolean[] used;
+	private int[] next, prev;
+	private int freeRecord = -1;
+
+	// first record of each process
+	private HashMap<Integer, Integer> heads = new HashMap<Integer, Integer>();
+}
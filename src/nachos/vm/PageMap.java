@@ -0,0 +1,122 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+/**
+ * A map from pages, packed into <tt>long</tt> keys by
+ * <tt>PageScheduler.getPage()</tt>, to non-negative <tt>int</tt> values. Keys
+ * and values are kept in parallel arrays with open addressing and linear
+ * probing, so lookups allocate nothing.
+ */
+public class PageMap {
+	/**
+	 * Allocate a new, empty map.
+	 */
+	public PageMap() {
+		allocate(16);
+	}
+
+	/**
+	 * Return the value mapped to the specified key, or -1 if there is none.
+	 */
+	public int get(long key) {
+		for (int i = indexOf(key); values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Map the specified key to the specified value, replacing any value it was
+	 * mapped to.
+	 */
+	public void put(long key, int value) {
+		int i = indexOf(key);
+		for (; values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > values.length) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			allocate(values.length * 2);
+			for (int j = 0; j < oldValues.length; ++j) {
+				if (oldValues[j] != -1) {
+					insert(oldKeys[j], oldValues[j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the mapping of the specified key.
+	 *
+	 * @return the value the key was mapped to, or -1 if there was none.
+	 */
+	public int remove(long key) {
+		int i = indexOf(key);
+		for (; values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				break;
+			}
+		}
+		int value = values[i];
+		if (value == -1) {
+			return -1;
+		}
+		size--;
+
+		// shift back the entries of the run that probed past the hole
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != -1; j = (j + 1) & mask) {
+			int home = indexOf(keys[j]);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		values[hole] = -1;
+		return value;
+	}
+
+	/**
+	 * Return the number of keys mapped.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, -1);
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	private void insert(long key, int value) {
+		int i = indexOf(key);
+		while (values[i] != -1) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	private int indexOf(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int shift;
+	private int size = 0;
+}
@@ -9,10 +9,15 @@ import java.util.HashMap;
 import java.util.LinkedList;
 
 import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
+import nachos.threads.Condition2;
+import nachos.threads.KThread;
 import nachos.threads.Lock;
+import nachos.userprog.ResourceUsage;
+import nachos.userprog.UserKernel;
 
 public class PageScheduler {
 	public PageScheduler() {
@@ -21,42 +26,147 @@ public class PageScheduler {
 	}
 
 	public void init() {
-		queue.clear();
 		int length = Machine.processor().getNumPhysPages();
-		for (int i = 0; i < length; ++i) {
-			queue.add(new Integer(i));
-		}
+		pinned = new int[length];
+		backed = new boolean[length];
+		prefetched = new boolean[length];
+		// leave frames for the faults taken while copies hold theirs
+		maxCopyPins = Math.max(1, length / 2);
+
+		policy = (ReplacementPolicy) Lib.constructObject(Config.getString(
+				"VM.replacementPolicy", "nachos.vm.ClockPolicy"));
+		policy.init(this, length);
 
 		swapFile.init();
 		
+		// never given to the replacement policy, so never evicted
+		zeroFrame = UserKernel.frameAllocator.allocate();
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, Processor.makeAddress(zeroFrame, 0), Processor.makeAddress(zeroFrame, 0) + Processor.pageSize, (byte) 0);
+
 		pageLock = new Lock();
+		unpinned = new Condition2(pageLock);
+
+		// by default there is no daemon when memory is too small to keep a
+		// frame free
+		freeLowWatermark = Config.getInteger("VM.freeLowWatermark", length < 4 ? 0 : Math.max(1, length / 16));
+		freeHighWatermark = Config.getInteger("VM.freeHighWatermark",
+				Math.min(Math.max(freeLowWatermark + 1, length / 8), length / 2));
+		Lib.assertTrue(0 <= freeLowWatermark && freeLowWatermark <= freeHighWatermark
+				&& freeHighWatermark <= length / 2);
+		if (freeLowWatermark > 0) {
+			daemonWake = new Condition2(pageLock);
+			new KThread(new Runnable() {
+				public void run() {
+					runDaemon();
+				}
+			}).setName("page daemon").fork();
+		}
+		
+		maxPrefetch = Config.getInteger("VM.prefetchWindow", Math.min(8, length / 4));
+		Lib.assertTrue(0 <= maxPrefetch && maxPrefetch <= length / 4);
 	}
 	
-	// clock page scheduler
-	private LinkedList<Integer> queue = new LinkedList<Integer>();
-	
-	private int getVictim() {
+	// a page as known to the replacement policy
+	public static long getPage(int processID, int vpn) {
+		return ((long) processID << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	boolean isPinned(int ppn) {
+		return pinned[ppn] > 0;
+	}
+
+	// whether any page held in the frame must be written back to be evicted
+	boolean isDirty(int ppn) {
+		return !backed[ppn];
+	}
+
+	// take a free frame if there is one, otherwise evict a victim. Returns -1
+	// if every frame is pinned; the caller must then wait on unpinned
+	private int allocateFrame() {
+		int ppn = UserKernel.frameAllocator.allocate();
+		if (ppn == -1) {
+			ppn = policy.getVictim();
+			if (ppn == -1) {
+				return -1;
+			}
+			evict(ppn);
+		}
+		if (daemonWake != null && UserKernel.frameAllocator.getFreeCount() < freeLowWatermark) {
+			daemonWake.wake();
+		}
+		return ppn;
+	}
+
+	// once free frames fall below the low watermark, evict pages until the
+	// high watermark is reached, so faults find a free frame and only have
+	// to read. The lock is released after each page to let faults through,
+	// but is held while that page is written, as the swap file relies on it;
+	// a fault may wait for one write. A pass ends early when the remaining
+	// frames are pinned; the next allocation below the low watermark starts
+	// another
+	private void runDaemon() {
+		pageLock.acquire();
 		while (true) {
-			int ppn = queue.removeFirst();
-			TranslationEntry entry = pageTable.getTranslationEntry(ppn);
-			if (entry == null || !entry.used) {
-				return ppn;
+			daemonWake.sleep();
+			while (UserKernel.frameAllocator.getFreeCount() < freeHighWatermark) {
+				int ppn = policy.getVictim();
+				if (ppn == -1) {
+					break;
+				}
+				evict(ppn);
+				UserKernel.frameAllocator.free(ppn);
+
+				pageLock.release();
+				KThread.yield();
+				pageLock.acquire();
 			}
-			entry.used = false;
-			int processID = pageTable.getProcessID(ppn);
-			pageTable.put(processID, entry);
-			queue.add(new Integer(ppn));
 		}
 	}
 	
 	// clear all pages when unloadSections() is invoked
 	public void clearPage(int processID) {
-		pageTable.removeProcessPage(processID);
+		pageLock.acquire();
+		int[] frames = pageTable.removeProcessPage(processID);
+		int count = 0;
+		for (int i = 0; i < frames.length; ++i) {
+			if (frames[i] != zeroFrame) {
+				policy.remove(frames[i]);
+				prefetched[frames[i]] = false;
+				frames[count++] = frames[i];
+			}
+		}
+		UserKernel.frameAllocator.free(frames, count);
 		swapFile.clearPage(processID);
+		readahead.remove(processID);
+		usages.remove(processID);
+		unpinned.wakeAll();
+		pageLock.release();
 	}
 	
+	// merge the bits of a TLB entry into the page table entry in place
 	public void writePageEntry(int processID, TranslationEntry entry) {
-		pageTable.put(processID, entry);
+		TranslationEntry current = pageTable.getTranslationEntry(processID, entry.vpn);
+		if (current == null || current.ppn != entry.ppn) {
+			return;
+		}
+		current.dirty |= entry.dirty;
+		if (entry.dirty) {
+			backed[entry.ppn] = false;
+		}
+		if (entry.used) {
+			reference(entry.ppn);
+		}
+	}
+
+	private void reference(int ppn) {
+		policy.reference(ppn);
+		prefetched[ppn] = false;
+	}
+
+	// a mapped page, without faulting it in
+	public TranslationEntry getResidentEntry(int processID, int vpn) {
+		return pageTable.getTranslationEntry(processID, vpn);
 	}
 	
 	public TranslationEntry getPageEntry(LazyLoader loader, int processID, int vpn) {
@@ -70,117 +180,574 @@ public class PageScheduler {
 		return entry;
 	}
 	
+	// paging is charged by process ID, whichever thread does it; pages of a
+	// segment no process has attached are charged to no one
+	private ResourceUsage usageOf(int processID) {
+		ResourceUsage usage = usages.get(processID);
+		return usage == null ? unowned : usage;
+	}
+
+	// the usage to charge the paging of a process to, until clearPage()
+	public void setResourceUsage(int processID, ResourceUsage usage) {
+		pageLock.acquire();
+		usages.put(processID, usage);
+		pageLock.release();
+	}
+
 	public boolean handlePageFault(LazyLoader loader, int processID, int vpn) {
 		pageLock.acquire();
+		usageOf(processID).pageFaults++;
+		// every frame may be pinned by kernel copies in progress
+		while (pageTable.getTranslationEntry(processID, vpn) == null && !loadPage(loader, processID, vpn)) {
+			unpinned.sleep();
+		}
+		if (maxPrefetch > 0) {
+			prefetch(loader, processID, vpn);
+		}
+		pageLock.release();
 		
-		int tmpppn = getVictim();
-		int tmppid = pageTable.getProcessID(tmpppn);
-		int tmpvpn = pageTable.getvpn(tmpppn);
+		return true;
+	}
 		
-		//swapToFile
-		if (tmppid == processID) {
-			VMKernel.tlbScheduler.clear(tmppid, tmpvpn);
+	// a fault on the page right after those last faulted or prefetched
+	// continues a sequential run, and the next pages are read ahead, doubling
+	// the window each time. Any other fault ends the run
+	private void prefetch(LazyLoader loader, int processID, int vpn) {
+		int[] stream = readahead.get(processID);
+		if (stream == null) {
+			stream = new int[] { -1, 0 };
+			readahead.put(processID, stream);
+		}
+		if (vpn != stream[0]) {
+			stream[0] = vpn + 1;
+			stream[1] = 0;
+			return;
 		}
-		TranslationEntry entry = pageTable.getTranslationEntry(tmpppn);
-		//check if dirty
-		if (entry != null) {
-			swapFile.swapToFile(tmppid, tmpvpn, entry);
+		stream[1] = Math.min(Math.max(2 * stream[1], 1), maxPrefetch);
+
+		// the pages of the batch must not evict each other
+		int[] frames = new int[stream[1] + 1];
+		frames[0] = pageTable.getTranslationEntry(processID, vpn).ppn;
+		pinned[frames[0]]++;
+		int count = 1;
+		int next = vpn + 1;
+		for (; next <= vpn + stream[1] && canPrefetch(loader, processID, next); ++next) {
+			if (!loadPage(loader, processID, next)) {
+				break;
+			}
+			int ppn = pageTable.getTranslationEntry(processID, next).ppn;
+			prefetched[ppn] = true;
+			pinned[ppn]++;
+			frames[count++] = ppn;
+		}
+		for (int i = 0; i < count; ++i) {
+			pinned[frames[i]]--;
+		}
+		stream[0] = next;
+	}
+
+	// only pages that have to be read from swap or from the executable are
+	// worth reading ahead
+	private boolean canPrefetch(LazyLoader loader, int processID, int vpn) {
+		if (pageTable.getTranslationEntry(processID, vpn) != null || loader.getSegmentPage(vpn) != null) {
+			return false;
+		}
+		if (swapFile.contains(processID, vpn)) {
+			return true;
+		}
+		Pair shareKey = loader.getShareKey(vpn);
+		return !loader.isZeroFill(vpn) && (shareKey == null || pageTable.getSharedPage(shareKey) == -1);
+	}
+
+	// returns false, having changed nothing, if no frame can be allocated
+	private boolean loadPage(LazyLoader loader, int processID, int vpn) {
+		// pages of a shared segment are kept under the segment's own ID
+		Pair segmentPage = loader.getSegmentPage(vpn);
+		if (segmentPage != null) {
+			TranslationEntry anchor = loadSegmentPage(processID, segmentPage.first, segmentPage.second);
+			if (anchor == null) {
+				return false;
+			}
+			pageTable.put(processID, new TranslationEntry(vpn, anchor.ppn, true, false, false, false));
+			return true;
+		}
+
+		// read-only text may already be resident for another process
+		Pair shareKey = loader.getShareKey(vpn);
+		if (shareKey != null && pageTable.getSharedPage(shareKey) != -1) {
+			int ppn = pageTable.getSharedPage(shareKey);
+			pageTable.put(processID, new TranslationEntry(vpn, ppn, true, true, false, false));
+			return true;
+		}
+
+		// untouched zero-filled pages all map the zero frame until written
+		if (loader.isZeroFill(vpn) && !swapFile.contains(processID, vpn)) {
+			pageTable.put(processID, new TranslationEntry(vpn, zeroFrame, true, true, false, false));
+			pageTable.setCopyOnWrite(processID, vpn);
+			return true;
+		}
+
+		int ppn = allocateFrame();
+		if (ppn == -1) {
+			return false;
 		}
-		pageTable.removePage(tmppid, tmpvpn);
 		
 		//swapToMemory
-		int ppn = tmpppn;
-		entry = swapFile.swapToMemory(processID, vpn, ppn);
+		TranslationEntry entry = swapFile.swapToMemory(processID, vpn, ppn);
 		boolean needToLoadSection = entry == null;
+		if (!needToLoadSection) {
+			usageOf(processID).swapIns++;
+		}
 		if (needToLoadSection) {
 			entry = new TranslationEntry(vpn, ppn, true, false, false, false);
 			//loadPages
 			entry.readOnly = loader.loadSection(vpn, ppn).readOnly;
 		}
 		pageTable.put(processID, entry);
-		queue.add(new Integer(ppn));
+		if (needToLoadSection && shareKey != null) {
+			pageTable.setSharedPage(shareKey, ppn);
+		}
+		backed[ppn] = true;
+		policy.pageIn(ppn, getPage(processID, vpn));
+		return true;
+	}
+
+	private TranslationEntry loadSegmentPage(int processID, int segmentID, int page) {
+		TranslationEntry anchor = pageTable.getTranslationEntry(segmentID, page);
+		if (anchor != null) {
+			return anchor;
+		}
+
+		int ppn = allocateFrame();
+		if (ppn == -1) {
+			return null;
+		}
+		anchor = swapFile.swapToMemory(segmentID, page, ppn);
+		if (anchor == null) {
+			anchor = new TranslationEntry(page, ppn, true, false, false, false);
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, Processor.makeAddress(ppn, 0), Processor.makeAddress(ppn, 0) + Processor.pageSize, (byte) 0);
+		} else {
+			usageOf(processID).swapIns++;
+		}
+		pageTable.put(segmentID, anchor);
+		backed[ppn] = true;
+		policy.pageIn(ppn, getPage(segmentID, page));
+		return anchor;
+	}
+
+	// drop the mappings of a detached range; the segment keeps its pages
+	public void unmapRange(int processID, int firstVPN, int numPages) {
+		pageLock.acquire();
+		for (int vpn = firstVPN; vpn < firstVPN + numPages; ++vpn) {
+			VMKernel.tlbScheduler.clear(processID, vpn);
+			pageTable.removePage(processID, vpn);
+		}
+		pageLock.release();
+	}
+
+	// share every page of the parent with the child, copying on write
+	public void fork(int parentID, int childID) {
+		pageLock.acquire();
+
+		// the parent's TLB may still allow writes to pages about to be shared
+		VMKernel.tlbScheduler.clearTLB(parentID);
+
+		Pair[] pages = pageTable.getProcessPages(parentID);
+		for (int i = 0; i < pages.length; ++i) {
+			int vpn = pages[i].second;
+			TranslationEntry entry = pageTable.getTranslationEntry(parentID, vpn);
+			// shared memory stays shared
+			if (pageTable.isSegmentFrame(entry.ppn)) {
+				pageTable.put(childID, new TranslationEntry(vpn, entry.ppn, true, false, false, false));
+				continue;
+			}
+			TranslationEntry copy = new TranslationEntry(vpn, entry.ppn, true, true, false, false);
+			pageTable.put(childID, copy);
+			if (!entry.readOnly || pageTable.isCopyOnWrite(parentID, vpn)) {
+				entry.readOnly = true;
+				pageTable.setCopyOnWrite(parentID, vpn);
+				pageTable.setCopyOnWrite(childID, vpn);
+			}
+		}
+		swapFile.fork(parentID, childID);
 		
 		pageLock.release();
+	}
+
+	// give the process a private, writable copy of a copy-on-write page
+	public boolean handleCopyOnWrite(int processID, int vpn) {
+		pageLock.acquire();
+		boolean copied = copyOnWrite(processID, vpn, true);
+		pageLock.release();
+
+		return copied;
+	}
+
+	// without wait, gives up if every frame is pinned
+	private boolean copyOnWrite(int processID, int vpn, boolean wait) {
+		VMKernel.tlbScheduler.clear(processID, vpn);
+		TranslationEntry entry = pageTable.getTranslationEntry(processID, vpn);
+		if (entry == null || !pageTable.isCopyOnWrite(processID, vpn)) {
+			return false;
+		}
+
+		int oldppn = entry.ppn;
+		if (oldppn == zeroFrame || pageTable.getMappings(oldppn).length > 1) {
+			pinned[oldppn]++;
+			int ppn = allocateFrame();
+			// the pin keeps the page mapped while waiting for a frame
+			while (ppn == -1 && wait) {
+				unpinned.sleep();
+				ppn = allocateFrame();
+			}
+			pinned[oldppn]--;
+			if (ppn == -1) {
+				return false;
+			}
+			// another thread of the process may have copied it meanwhile
+			if (!pageTable.isCopyOnWrite(processID, vpn)) {
+				UserKernel.frameAllocator.free(ppn);
+				return true;
+			}
+
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, Processor.makeAddress(oldppn, 0), memory, Processor.makeAddress(ppn, 0), Processor.pageSize);
+
+			pageTable.removePage(processID, vpn);
+			entry = new TranslationEntry(vpn, ppn, true, false, true, true);
+			pageTable.put(processID, entry);
+			backed[ppn] = false;
+			policy.pageIn(ppn, getPage(processID, vpn));
+		} else {
+			pageTable.clearCopyOnWrite(processID, vpn);
+			entry.readOnly = false;
+		}
 		
 		return true;
 	}
 	
+	// translate a run of pages for a kernel copy, faulting in missing pages;
+	// the frames stay pinned until unpinFrames(), so later faults in the run
+	// cannot evict them. Stops early at a page that cannot be written, and
+	// where the pins shared by all copies run out
+	public int[] pinRange(LazyLoader loader, int processID, int firstVPN, int numPages, boolean write) {
+		pageLock.acquire();
+
+		while (numPages > 0 && copyPins >= maxCopyPins) {
+			unpinned.sleep();
+		}
+		numPages = Math.min(numPages, maxCopyPins - copyPins);
+		// reserved up front, since faults below may let other copies run
+		copyPins += numPages;
+
+		int[] frames = new int[numPages];
+		int count = 0;
+		for (; count < numPages; ++count) {
+			int vpn = firstVPN + count;
+			TranslationEntry entry = pageTable.getTranslationEntry(processID, vpn);
+			if (entry == null) {
+				usageOf(processID).pageFaults++;
+				// a partial run can be copied; with none, wait for a frame
+				boolean loaded = loadPage(loader, processID, vpn);
+				while (!loaded && count == 0) {
+					unpinned.sleep();
+					loaded = pageTable.getTranslationEntry(processID, vpn) != null || loadPage(loader, processID, vpn);
+				}
+				if (!loaded) {
+					break;
+				}
+				entry = pageTable.getTranslationEntry(processID, vpn);
+			}
+			if (entry.readOnly && write && copyOnWrite(processID, vpn, count == 0)) {
+				entry = pageTable.getTranslationEntry(processID, vpn);
+			}
+			if (entry.readOnly && write) {
+				break;
+			}
+			reference(entry.ppn);
+			entry.dirty |= write;
+			if (write) {
+				backed[entry.ppn] = false;
+			}
+			pinned[entry.ppn]++;
+			frames[count] = entry.ppn;
+		}
+		if (count < numPages) {
+			copyPins -= numPages - count;
+			unpinned.wakeAll();
+		}
+
+		pageLock.release();
+
+		return Arrays.copyOf(frames, count);
+	}
+
+	public void unpinFrames(int[] frames) {
+		pageLock.acquire();
+		for (int i = 0; i < frames.length; ++i) {
+			pinned[frames[i]]--;
+		}
+		copyPins -= frames.length;
+		unpinned.wakeAll();
+		pageLock.release();
+	}
+
+	// unmap every page held in the frame, saving its contents if needed
+	private void evict(int ppn) {
+		Pair[] users = pageTable.getMappings(ppn);
+		for (int i = 0; i < users.length; ++i) {
+			VMKernel.tlbScheduler.clear(users[i].first, users[i].second);
+		}
+
+		// read ahead but never used: the owner's window was too large
+		if (prefetched[ppn]) {
+			prefetched[ppn] = false;
+			int[] stream = users.length > 0 ? readahead.get(users[0].first) : null;
+			if (stream != null) {
+				stream[1] /= 2;
+			}
+		}
+
+		if (users.length == 1 && !backed[ppn] && isPrivate(users[0].first, users[0].second)) {
+			swapOutRun(users[0].first, users[0].second);
+			pageTable.removeFrame(ppn);
+			return;
+		}
+
+		// shared text can always be reloaded from the executable, and a shared
+		// segment page is saved once, under the segment. A modified page
+		// shared copy-on-write is also written once, the others sharing its
+		// slot
+		if (!pageTable.isShared(ppn)) {
+			Pair written = null;
+			boolean segment = pageTable.isSegmentFrame(ppn);
+			// a segment page is charged to a process it is mapped in
+			int owner = -1;
+			for (int i = 0; i < users.length && segment; ++i) {
+				if (users[i].first >= 0) {
+					owner = users[i].first;
+				}
+			}
+			for (int i = 0; i < users.length; ++i) {
+				if (segment && users[i].first >= 0) {
+					continue;
+				}
+				TranslationEntry entry = pageTable.getTranslationEntry(users[i].first, users[i].second);
+				// the copy read back from swap is private to its owner
+				if (pageTable.isCopyOnWrite(users[i].first, users[i].second)) {
+					entry = new TranslationEntry(entry);
+					entry.readOnly = false;
+				}
+				// an unmodified page is reloaded from its copy in swap if it
+				// has one, or else from the executable or as zeros
+				if (backed[ppn]) {
+					swapFile.retain(users[i].first, users[i].second, entry);
+					continue;
+				}
+				if (written != null) {
+					swapFile.share(users[i].first, users[i].second, written.first, written.second, entry);
+					continue;
+				}
+				swapFile.swapToFile(users[i].first, users[i].second, entry);
+				usageOf(segment ? owner : users[i].first).swapOuts++;
+				written = users[i];
+			}
+		}
+
+		pageTable.removeFrame(ppn);
+	}
+
+	// a resident page mapped only by its process, which can be saved as is
+	private boolean isPrivate(int processID, int vpn) {
+		TranslationEntry entry = pageTable.getTranslationEntry(processID, vpn);
+		return processID >= 0 && entry != null && pageTable.getMappings(entry.ppn).length == 1
+				&& !pageTable.isShared(entry.ppn) && !pageTable.isCopyOnWrite(processID, vpn);
+	}
+
+	// write a private victim along with the modified private pages following
+	// it, which stay resident but can later be evicted without writing them
+	private void swapOutRun(int processID, int vpn) {
+		TranslationEntry[] run = new TranslationEntry[swapFile.getClusterSize()];
+		run[0] = pageTable.getTranslationEntry(processID, vpn);
+		int count = 1;
+		while (count < run.length && isPrivate(processID, vpn + count)) {
+			TranslationEntry entry = pageTable.getTranslationEntry(processID, vpn + count);
+			if (backed[entry.ppn] || pinned[entry.ppn] > 0) {
+				break;
+			}
+			run[count++] = entry;
+		}
+		swapFile.swapOutRun(processID, run, count);
+		usageOf(processID).swapOuts += count;
+
+		for (int i = 1; i < count; ++i) {
+			run[i].dirty = false;
+			backed[run[i].ppn] = true;
+		}
+	}
+
 	public InvertedPageTable pageTable;
 	
-	//inverted page table
+	//inverted page table, a frame may be mapped by several (pid, vpn)
 	private class InvertedPageTable {
+		@SuppressWarnings("unchecked")
 		public InvertedPageTable() {
 			int length = Machine.processor().getNumPhysPages();
-			coreMapPID = new int[length];
-			Arrays.fill(coreMapPID, -1);
-			coreMapVPN = new int[length];
-			Arrays.fill(coreMapVPN, -1);
-			coreMapEntry = new TranslationEntry[length];
-			mapping = new HashMap<Pair, Integer>();
-		}
-		
-		public TranslationEntry getTranslationEntry(Integer ppn) {
-			if (ppn == null || ppn < 0 || ppn >= coreMapEntry.length) {
-				return null;
+			coreMapUsers = new LinkedList[length];
+			for (int i = 0; i < length; ++i) {
+				coreMapUsers[i] = new LinkedList<Pair>();
 			}
-			return coreMapEntry[ppn];
+			coreMapShareKey = new Pair[length];
+			sharedPages = new HashMap<Pair, Integer>();
 		}
 		
 		public TranslationEntry getTranslationEntry(int processID, int vpn) {
-			return getTranslationEntry(mapping.get(new Pair(processID, vpn)));
+			int record = mapping.find(processID, vpn);
+			return record == -1 ? null : mapping.getEntry(record);
 		}
 		
 		public void put(int processID, TranslationEntry entry) {
-			coreMapPID[entry.ppn] = processID;
-			coreMapVPN[entry.ppn] = entry.vpn;
-			coreMapEntry[entry.ppn] = entry;
-			mapping.put(new Pair(processID, entry.vpn), new Integer(entry.ppn));
-		}
+			int record = mapping.find(processID, entry.vpn);
+			TranslationEntry old = null;
+			if (record == -1) {
+				record = mapping.add(processID, entry.vpn);
+			} else {
+				old = mapping.getEntry(record);
+			}
+			mapping.setEntry(record, entry);
 		
-		public int getProcessID(Integer ppn) {
-			if (ppn == null || ppn < 0 || ppn >= coreMapPID.length) {
-				return -1;
+			Pair key = new Pair(processID, entry.vpn);
+			if (old != null && old.ppn != entry.ppn) {
+				detach(key, old.ppn);
+			}
+			if (old == null || old.ppn != entry.ppn) {
+				coreMapUsers[entry.ppn].add(key);
 			}
-			return coreMapPID[ppn];
 		}
 		
-		public int getvpn(Integer ppn) {
-			if (ppn == null || ppn < 0 || ppn >= coreMapVPN.length) {
-				return -1;
+		public Pair[] getMappings(int ppn) {
+			return coreMapUsers[ppn].toArray(new Pair[0]);
+		}
+
+		public int getSharedPage(Pair shareKey) {
+			Integer ppn = sharedPages.get(shareKey);
+			return ppn == null ? -1 : ppn.intValue();
+		}
+
+		public void setSharedPage(Pair shareKey, int ppn) {
+			coreMapShareKey[ppn] = shareKey;
+			sharedPages.put(shareKey, new Integer(ppn));
+		}
+
+		public boolean isShared(int ppn) {
+			return coreMapShareKey[ppn] != null;
+		}
+
+		// segment pages are mapped by their segment's negative ID
+		public boolean isSegmentFrame(int ppn) {
+			for (Pair key : coreMapUsers[ppn]) {
+				if (key.first < 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public Pair[] getProcessPages(int processID) {
+			LinkedList<Pair> pages = new LinkedList<Pair>();
+			for (int record = mapping.first(processID); record != -1; record = mapping.next(record)) {
+				pages.add(new Pair(processID, mapping.getVPN(record)));
+			}
+			return pages.toArray(new Pair[0]);
+		}
+
+		// the value of a record is 1 for a copy-on-write page
+		public boolean isCopyOnWrite(int processID, int vpn) {
+			int record = mapping.find(processID, vpn);
+			return record != -1 && mapping.getValue(record) == 1;
+		}
+
+		public void setCopyOnWrite(int processID, int vpn) {
+			mapping.setValue(mapping.find(processID, vpn), 1);
+		}
+
+		public void clearCopyOnWrite(int processID, int vpn) {
+			int record = mapping.find(processID, vpn);
+			if (record != -1) {
+				mapping.setValue(record, 0);
 			}
-			return coreMapVPN[ppn];			
 		}
 		
-		public void removeProcessPage(int processID) {
-			for (int i = 0; i < coreMapPID.length; ++i) {
-				if (coreMapPID[i] == processID) {
-					removePage(processID, coreMapVPN[i]);
+		// returns the frames no longer mapped by anyone
+		public int[] removeProcessPage(int processID) {
+			int[] frames = new int[coreMapUsers.length];
+			int count = 0;
+			for (int record = mapping.first(processID); record != -1; record = mapping.first(processID)) {
+				int ppn = mapping.getEntry(record).ppn;
+				removePage(processID, mapping.getVPN(record));
+				if (coreMapUsers[ppn].isEmpty()) {
+					frames[count++] = ppn;
 				}
 			}
+			int[] result = new int[count];
+			System.arraycopy(frames, 0, result, 0, count);
+			return result;
 		}
 		
 		public void removePage(int processID, int vpn) {
-			Pair del = new Pair(processID, vpn);
-			if (mapping.containsKey(del)) {
-				int ppn = mapping.remove(del);
-				coreMapPID[ppn] = -1;
-				coreMapVPN[ppn] = -1;
-				coreMapEntry[ppn] = null;
+			int record = mapping.find(processID, vpn);
+			if (record != -1) {
+				int ppn = mapping.getEntry(record).ppn;
+				mapping.remove(record);
+				detach(new Pair(processID, vpn), ppn);
 			}
 		}
-		
-		public void removePage(int ppn) {
-			removePage(coreMapPID[ppn], coreMapVPN[ppn]);
+	
+		public void removeFrame(int ppn) {
+			Pair[] users = getMappings(ppn);
+			for (int i = 0; i < users.length; ++i) {
+				removePage(users[i].first, users[i].second);
+			}
 		}
-		
-		private int[] coreMapPID;
-		private int[] coreMapVPN;
-		private TranslationEntry[] coreMapEntry;
-		
-		private HashMap<Pair, Integer> mapping;
+
+		private void detach(Pair key, int ppn) {
+			coreMapUsers[ppn].remove(key);
+			if (coreMapUsers[ppn].isEmpty() && coreMapShareKey[ppn] != null) {
+				sharedPages.remove(coreMapShareKey[ppn]);
+				coreMapShareKey[ppn] = null;
+			}
+		}
+
+		private LinkedList<Pair>[] coreMapUsers;
+		private Pair[] coreMapShareKey;
+
+		private PageIndex mapping = new PageIndex();
+		private HashMap<Pair, Integer> sharedPages;
 	}
-	
+
+	private ReplacementPolicy policy;
 	private Lock pageLock;
+	private Condition2 daemonWake = null;
+	// signalled when frames are unpinned or freed
+	private Condition2 unpinned;
+	private int freeLowWatermark, freeHighWatermark;
+	private int maxPrefetch;
+	// per process: (vpn expected to fault next in a sequential run, window)
+	private HashMap<Integer, int[]> readahead = new HashMap<Integer, int[]>();
+	private HashMap<Integer, ResourceUsage> usages = new HashMap<Integer, ResourceUsage>();
+	private ResourceUsage unowned = new ResourceUsage();
+	private int zeroFrame;
+	// frames in use by a kernel copy or a copy-on-write break
+	private int[] pinned;
+	// pages pinned by kernel copies, over all processes
+	private int copyPins = 0;
+	private int maxCopyPins;
+	// frames whose contents can be reloaded, from swap or from where they
+	// were first loaded, because they have not been written since
+	private boolean[] backed;
+	// frames read ahead and not referenced since
+	private boolean[] prefetched;
 	
 	public SwapFile swapFile;
 }
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+/**
+ * Chooses the frames evicted by the page scheduler when no frame is free.
+ *
+ * <p>
+ * The page scheduler reports every frame that starts holding a page, every
+ * reference to a frame, and every frame released without being evicted, and
+ * asks for a victim whenever it needs a frame. A page is identified by its
+ * process ID and virtual page number, packed by <tt>getPage()</tt>, so that a
+ * policy can remember pages after evicting them.
+ */
+public interface ReplacementPolicy {
+	/**
+	 * Prepare to manage the frames of the specified page scheduler.
+	 */
+	public void init(PageScheduler scheduler, int numFrames);
+
+	/**
+	 * Record that a frame now holds the specified page, just brought in by a
+	 * fault.
+	 */
+	public void pageIn(int ppn, long page);
+
+	/**
+	 * Record that the page held in a frame has been referenced.
+	 */
+	public void reference(int ppn);
+
+	/**
+	 * Stop tracking a frame released without eviction. Does nothing if the
+	 * frame is not tracked.
+	 */
+	public void remove(int ppn);
+
+	/**
+	 * Choose a frame to evict, and stop tracking it. Pinned frames are never
+	 * chosen.
+	 *
+	 * @return the frame, or -1 if every tracked frame is pinned.
+	 */
+	public int getVictim();
+}
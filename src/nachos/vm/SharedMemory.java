@@ -0,0 +1,96 @@
+package nachos.vm;
+
+import java.util.HashMap;
+
+/**
+ * The shared memory segments of the system. A segment is a run of pages that
+ * can be attached to the address space of several processes at once.
+ *
+ * <p>
+ * The pages of a segment belong to a pseudo-process with a negative ID, so
+ * the page scheduler keeps, evicts and swaps them like the pages of any
+ * other process, and maps their frames into every attaching process. A
+ * segment is destroyed when the last process attached to it detaches.
+ */
+public class SharedMemory {
+	public SharedMemory() {
+	}
+
+	/**
+	 * Return the segment with the specified key, creating it with the
+	 * specified number of pages if there is none. Key 0 always creates a new
+	 * segment.
+	 *
+	 * @return the segment ID, or -1 if an existing segment is too small.
+	 */
+	public int get(int key, int pages) {
+		if (key != 0 && keys.containsKey(key)) {
+			Segment segment = segments.get(keys.get(key));
+			return segment.numPages >= pages ? segment.id : -1;
+		}
+
+		Segment segment = new Segment(nextID++, key, pages);
+		segments.put(segment.id, segment);
+		if (key != 0) {
+			keys.put(key, segment.id);
+		}
+		return segment.id;
+	}
+
+	/**
+	 * Return the number of pages of the specified segment, or -1 if there is
+	 * no such segment.
+	 */
+	public int getNumPages(int id) {
+		Segment segment = segments.get(id);
+		return segment == null ? -1 : segment.numPages;
+	}
+
+	/**
+	 * Return the pseudo-process ID owning the pages of the specified segment.
+	 */
+	public static int getProcessID(int id) {
+		return -2 - id;
+	}
+
+	/**
+	 * Record one more process attached to the specified segment.
+	 */
+	public void attach(int id) {
+		segments.get(id).attachCount++;
+	}
+
+	/**
+	 * Record that a process detached from the specified segment, destroying
+	 * the segment if no process is attached anymore.
+	 */
+	public void detach(int id) {
+		Segment segment = segments.get(id);
+		if (--segment.attachCount > 0) {
+			return;
+		}
+
+		segments.remove(id);
+		if (segment.key != 0) {
+			keys.remove(segment.key);
+		}
+		VMKernel.pageScheduler.clearPage(getProcessID(id));
+	}
+
+	private class Segment {
+		Segment(int id, int key, int numPages) {
+			this.id = id;
+			this.key = key;
+			this.numPages = numPages;
+		}
+
+		int id;
+		int key;
+		int numPages;
+		int attachCount = 0;
+	}
+
+	private int nextID = 0;
+	private HashMap<Integer, Segment> segments = new HashMap<Integer, Segment>();
+	private HashMap<Integer, Integer> keys = new HashMap<Integer, Integer>();
+}
@@ -0,0 +1,52 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+
+/**
+ * Keeps swapped pages in a file of the stub file system, named by
+ * <tt>swapFile</tt>. Every access pays the delay of the stub file system.
+ */
+public class StubSwapBackend implements SwapBackend {
+	public StubSwapBackend() {
+		if ((filename = Config.getString("swapFile")) == null) {
+			filename = "SWAP";
+		}
+	}
+
+	public void init(int pageSize) {
+		this.pageSize = pageSize;
+		file = Machine.stubFileSystem().open(filename, true);
+	}
+
+	public int read(int slot, int count, byte[] data, int offset) {
+		return file.read(slot * pageSize, data, offset, count * pageSize);
+	}
+
+	public int write(int slot, int count, byte[] data, int offset) {
+		return file.write(slot * pageSize, data, offset, count * pageSize);
+	}
+
+	public int getLength() {
+		return file.length() / pageSize;
+	}
+
+	// the stub file system only truncates a file when reopening it
+	public void truncate(int slots) {
+		byte[] live = new byte[slots * pageSize];
+		file.read(0, live, 0, live.length);
+		file.close();
+		file = Machine.stubFileSystem().open(filename, true);
+		file.write(0, live, 0, live.length);
+	}
+
+	public void close() {
+		file.close();
+		Machine.stubFileSystem().remove(filename);
+	}
+
+	private String filename;
+	private int pageSize;
+	private OpenFile file;
+}
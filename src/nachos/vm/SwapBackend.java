@@ -0,0 +1,49 @@
+package nachos.vm;
+
+/**
+ * The storage holding the swapped pages, as an array of page-sized slots
+ * that grows as higher slots are written. Reads and writes may block the
+ * calling thread for as long as the storage takes.
+ *
+ * <p>
+ * The backend is chosen by <tt>VM.swapBackend</tt>, the name of a class
+ * with a public no-argument constructor.
+ */
+public interface SwapBackend {
+	/**
+	 * Prepare to hold pages of the specified size.
+	 */
+	public void init(int pageSize);
+
+	/**
+	 * Read the pages of a run of consecutive slots into the specified buffer,
+	 * as a single transfer.
+	 *
+	 * @return the number of bytes read, less than asked for if some of the
+	 *         slots were never written.
+	 */
+	public int read(int slot, int count, byte[] data, int offset);
+
+	/**
+	 * Write pages from the specified buffer into a run of consecutive slots,
+	 * as a single transfer.
+	 *
+	 * @return the number of bytes written, or -1 on error.
+	 */
+	public int write(int slot, int count, byte[] data, int offset);
+
+	/**
+	 * Return the number of slots the backend currently holds storage for.
+	 */
+	public int getLength();
+
+	/**
+	 * Release the storage of every slot at or after the specified one.
+	 */
+	public void truncate(int slots);
+
+	/**
+	 * Release the storage, when the kernel terminates.
+	 */
+	public void close();
+}
@@ -0,0 +1,158 @@
+package nachos.vm;
+
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nachos.machine.Lib;
+
+/**
+ * A bounded pool of compressed swap slots kept in host memory, in front of
+ * the swap file. The owner decides which slots go to the pool and spills the
+ * least recently used ones to the file when it is full; pages that do not
+ * compress well are better written to the file directly.
+ */
+public class SwapCache {
+	/**
+	 * Allocate a new pool.
+	 *
+	 * @param capacity
+	 *            the number of compressed bytes the pool can hold.
+	 * @param pageSize
+	 *            the size of an uncompressed page.
+	 */
+	public SwapCache(int capacity, int pageSize) {
+		Lib.assertTrue(capacity >= 0 && pageSize > 0);
+
+		this.capacity = capacity;
+		this.pageSize = pageSize;
+		buffer = new byte[pageSize];
+	}
+
+	/**
+	 * Compress a page.
+	 *
+	 * @return the compressed page, or <tt>null</tt> if it would take more
+	 *         than three quarters of a page or could never fit in the pool.
+	 */
+	public byte[] compress(byte[] data, int offset) {
+		deflater.reset();
+		deflater.setInput(data, offset, pageSize);
+		deflater.finish();
+		int length = deflater.deflate(buffer, 0, pageSize * 3 / 4);
+		if (!deflater.finished() || length > capacity) {
+			return null;
+		}
+
+		byte[] compressed = new byte[length];
+		System.arraycopy(buffer, 0, compressed, 0, length);
+		return compressed;
+	}
+
+	public boolean contains(int slot) {
+		return slots.containsKey(slot);
+	}
+
+	/**
+	 * Return <tt>true</tt> if a page compressed to the specified number of
+	 * bytes fits in the pool without spilling any slot.
+	 */
+	public boolean hasRoom(int length) {
+		return used + length <= capacity;
+	}
+
+	/**
+	 * Remove the least recently used slot from the pool, uncompressing its
+	 * page into the specified buffer so it can be written elsewhere.
+	 *
+	 * @return the slot, or -1 if the pool is empty.
+	 */
+	public int removeOldest(byte[] data, int offset) {
+		if (slots.isEmpty()) {
+			return -1;
+		}
+		int slot = slots.keySet().iterator().next();
+		uncompress(slot, slots.get(slot), data, offset);
+		remove(slot);
+		return slot;
+	}
+
+	public void put(int slot, byte[] compressed) {
+		remove(slot);
+		slots.put(slot, compressed);
+		used += compressed.length;
+		storedPages++;
+		storedBytes += compressed.length;
+	}
+
+	/**
+	 * Uncompress the page of a slot into the specified buffer, if it is in the
+	 * pool.
+	 *
+	 * @return <tt>true</tt> if the slot was in the pool.
+	 */
+	public boolean get(int slot, byte[] data, int offset) {
+		byte[] compressed = slots.get(slot);
+		if (compressed == null) {
+			misses++;
+			return false;
+		}
+		hits++;
+		uncompress(slot, compressed, data, offset);
+		return true;
+	}
+
+	private void uncompress(int slot, byte[] compressed, byte[] data, int offset) {
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			Lib.assertTrue(inflater.inflate(data, offset, pageSize) == pageSize);
+		} catch (DataFormatException e) {
+			Lib.assertNotReached("corrupted swap cache slot " + slot);
+		}
+	}
+
+	public void remove(int slot) {
+		byte[] compressed = slots.remove(slot);
+		if (compressed != null) {
+			used -= compressed.length;
+		}
+	}
+
+	/**
+	 * Give the page of one slot to another slot, which must not be in the
+	 * pool.
+	 */
+	public void move(int from, int to) {
+		byte[] compressed = slots.remove(from);
+		if (compressed != null) {
+			slots.put(to, compressed);
+		}
+	}
+
+	/**
+	 * Return a summary of how well the pool has worked.
+	 */
+	public String getStatistics() {
+		long ratio = storedBytes == 0 ? 0 : (long) storedPages * pageSize / storedBytes;
+		long rate = hits + misses == 0 ? 0 : (long) hits * 100 / (hits + misses);
+		return "swap cache: " + slots.size() + " slots in " + used + " bytes, "
+				+ storedPages + " pages stored at " + ratio + ":1 compression, "
+				+ hits + " hits, " + misses + " misses (" + rate + "% hit rate)";
+	}
+
+	private int capacity;
+	private int pageSize;
+	private int used = 0;
+	// in least recently used order
+	private LinkedHashMap<Integer, byte[]> slots = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private Inflater inflater = new Inflater();
+	private byte[] buffer;
+
+	private int storedPages = 0;
+	private long storedBytes = 0;
+	private int hits = 0, misses = 0;
+}
@@ -1,70 +1,168 @@
 package nachos.vm;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
-import nachos.machine.OpenFile;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
 
 public class SwapFile {
 
 	public SwapFile() {
-		if ((filename = Config.getString("swapFile")) == null) {
-			filename = "SWAP";
-		}
-		mapping = new HashMap<Pair, TranslationEntry>();
-		usedPage = new HashMap<Pair, Integer>();
-		freePage = new LinkedList<Integer>(); 
+		pages = new PageIndex();
 	}
 	
 	public void init() {
 		pagesize = Machine.processor().pageSize;
-		swapFile = Machine.stubFileSystem().open(filename, true);
+		backend = (SwapBackend) Lib.constructObject(Config.getString(
+				"VM.swapBackend", "nachos.vm.StubSwapBackend"));
+		backend.init(pagesize);
+
+		int cacheSize = Config.getInteger("VM.swapCacheSize", 16 * pagesize);
+		if (cacheSize > 0) {
+			cache = new SwapCache(cacheSize, pagesize);
+		}
+
+		clusterSize = Config.getInteger("VM.swapCluster", 8);
+		Lib.assertTrue(clusterSize > 0);
+		readBuffer = new byte[clusterSize * pagesize];
+	}
+
+	// the most pages moved by one read or write of the backend
+	public int getClusterSize() {
+		return clusterSize;
 	}
 	
 	//invoked by unloadsections()
 	public void clearPage(int processID) {
-		Pair[] keys = new Pair[1];
-		keys = usedPage.keySet().toArray(keys);
-		for (int i = 0; i < keys.length; ++i) {//(pid, vpn)
-			if (keys[i] != null && keys[i].first == processID) {
-				mapping.remove(keys[i]);
-				freePage.add(usedPage.remove(keys[i]));
-			}
+		for (int record = pages.first(processID); record != -1; record = pages.first(processID)) {
+			release(pages.getValue(record));
+			pages.remove(record);
+		}
+		compact();
+	}
+	
+	// the child shares every swapped page of the parent until either rewrites it
+	public void fork(int parentID, int childID) {
+		for (int record = pages.first(parentID); record != -1; record = pages.next(record)) {
+			int copy = pages.add(childID, pages.getVPN(record));
+			int slot = pages.getValue(record);
+			pages.setEntry(copy, new TranslationEntry(pages.getEntry(record)));
+			pages.setValue(copy, slot);
+			slotRef[slot]++;
 		}
 	}
 	
 	public void close() {
-		swapFile.close();
-		Machine.stubFileSystem().remove(filename);
+		if (cache != null) {
+			Lib.debug(dbgVM, cache.getStatistics());
+		}
+		backend.close();
+	}
+
+	public boolean contains(int processID, int vpn) {
+		return pages.find(processID, vpn) != -1;
+	}
+
+	// keep the swapped copy of a page that was not modified since it was
+	// read back, recording the entry to restore with it
+	public boolean retain(int processID, int vpn, TranslationEntry entry) {
+		int record = pages.find(processID, vpn);
+		if (record == -1) {
+			return false;
+		}
+		pages.setEntry(record, entry);
+		return true;
+	}
+
+	// save a page that holds the same contents as another page just written,
+	// by sharing its slot as after fork()
+	public void share(int processID, int vpn, int fromProcessID, int fromVPN, TranslationEntry entry) {
+		int slot = pages.getValue(pages.find(fromProcessID, fromVPN));
+		slotRef[slot]++;
+		int record = pages.find(processID, vpn);
+		if (record == -1) {
+			record = pages.add(processID, vpn);
+		} else {
+			release(pages.getValue(record));
+		}
+		pages.setEntry(record, entry);
+		pages.setValue(record, slot);
 	}
 
 	public int swapToFile(int processID, int vpn, TranslationEntry entry) {
 		if (entry == null) {
 			return 0;
 		}
-		Pair p = new Pair(processID, vpn);
-		int page = usedPage.containsKey(p) ? usedPage.get(p) : allocate();
-		mapping.put(p, entry);
-		usedPage.put(p, new Integer(page));
-		return swapFile.write(calcOffset(page), Machine.processor().getMemory(), Processor.makeAddress(entry.ppn, 0), pagesize);
+		int record = pages.find(processID, vpn);
+		int slot;
+		if (record == -1) {
+			slot = allocateNear(processID, vpn);
+			record = pages.add(processID, vpn);
+		} else {
+			slot = pages.getValue(record);
+			if (slotRef[slot] > 1) {
+				release(slot);
+				slot = allocate();
+			}
+		}
+		pages.setEntry(record, entry);
+		pages.setValue(record, slot);
+		return writeSlot(slot, Machine.processor().getMemory(), Processor.makeAddress(entry.ppn, 0));
+	}
+
+	// write the pages of consecutive virtual pages of a process to a run of
+	// consecutive slots, so they go out, and can come back, in one transfer
+	public void swapOutRun(int processID, TranslationEntry[] entries, int count) {
+		Lib.assertTrue(count <= clusterSize);
+		if (count == 1) {
+			swapToFile(processID, entries[0].vpn, entries[0]);
+			return;
+		}
+
+		int[] records = new int[count];
+		for (int i = 0; i < count; ++i) {
+			records[i] = pages.find(processID, entries[i].vpn);
+			if (records[i] == -1) {
+				records[i] = pages.add(processID, entries[i].vpn);
+			} else {
+				release(pages.getValue(records[i]));
+			}
+		}
+		int first = allocateRun(count);
+
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = new byte[count * pagesize];
+		int pending = 0;
+		for (int i = 0; i < count; ++i) {
+			pages.setEntry(records[i], entries[i]);
+			pages.setValue(records[i], first + i);
+			discardRead(first + i);
+
+			int address = Processor.makeAddress(entries[i].ppn, 0);
+			if (cachePage(first + i, memory, address)) {
+				writeRun(first + i - pending, pending, buffer);
+				pending = 0;
+			} else {
+				System.arraycopy(memory, address, buffer, pending * pagesize, pagesize);
+				pending++;
+			}
+		}
+		writeRun(first + count - pending, pending, buffer);
 	}
 	
 	public TranslationEntry swapToMemory(int processID, int vpn, int ppn) {
-		Pair p = new Pair(processID, vpn);
-		//System.err.println(mapping.size());
-		if (!mapping.containsKey(p)) {
+		int record = pages.find(processID, vpn);
+		if (record == -1) {
 			return null;
 		}
-		int page = usedPage.get(p);
-		int readLen = swapFile.read(calcOffset(page), Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), pagesize);
+		int readLen = readSlot(pages.getValue(record), Machine.processor().getMemory(), Processor.makeAddress(ppn, 0));
 		if (readLen < pagesize) {
 			return null;
 		}
-		TranslationEntry entry = mapping.get(p);
+		TranslationEntry entry = pages.getEntry(record);
 		entry.vpn = vpn;
 		entry.ppn = ppn;
 		entry.valid = true;
@@ -73,24 +171,219 @@ public class SwapFile {
 		return entry;
 	}
 	
-	private int calcOffset(int page) {
-		return page * pagesize;
+	private int writeSlot(int slot, byte[] data, int offset) {
+		discardRead(slot);
+		if (cachePage(slot, data, offset)) {
+			return pagesize;
+		}
+		return backend.write(slot, 1, data, offset);
+	}
+
+	private void writeRun(int slot, int count, byte[] buffer) {
+		if (count > 0) {
+			backend.write(slot, count, buffer, 0);
+		}
+	}
+
+	// a page goes to the cache if it compresses well, pushing the least
+	// recently used slots of the cache out to the file to make room
+	private boolean cachePage(int slot, byte[] data, int offset) {
+		if (cache == null) {
+			return false;
+		}
+		cache.remove(slot);
+		byte[] compressed = cache.compress(data, offset);
+		if (compressed == null) {
+			return false;
+		}
+		byte[] buffer = new byte[pagesize];
+		while (!cache.hasRoom(compressed.length)) {
+			int oldest = cache.removeOldest(buffer, 0);
+			discardRead(oldest);
+			backend.write(oldest, 1, buffer, 0);
+		}
+		cache.put(slot, compressed);
+		return true;
+	}
+
+	// a slot missing from the cache is read along with the slots in use after
+	// it, which likely hold the next pages of the same process
+	private int readSlot(int slot, byte[] data, int offset) {
+		if (cache != null && cache.get(slot, data, offset)) {
+			return pagesize;
+		}
+		if (slot < readFirst || slot >= readFirst + readCount) {
+			int count = 1;
+			while (count < clusterSize && isUsed(slot + count)
+					&& (cache == null || !cache.contains(slot + count))) {
+				count++;
+			}
+			readFirst = slot;
+			readCount = Math.max(0, backend.read(slot, count, readBuffer, 0)) / pagesize;
+			if (readCount == 0) {
+				return 0;
+			}
+		}
+		System.arraycopy(readBuffer, (slot - readFirst) * pagesize, data, offset, pagesize);
+		return pagesize;
+	}
+
+	// forget the slots last read ahead if one of them is rewritten
+	private void discardRead(int slot) {
+		if (slot >= readFirst && slot < readFirst + readCount) {
+			readCount = 0;
+		}
 	}
 	
+	// take the slot next to that of a neighbouring page of the process if it
+	// is free, so runs of pages can be read back together
+	private int allocateNear(int processID, int vpn) {
+		int before = pages.find(processID, vpn - 1);
+		if (before != -1 && !isUsed(pages.getValue(before) + 1)) {
+			return take(pages.getValue(before) + 1);
+		}
+		int after = pages.find(processID, vpn + 1);
+		if (after != -1 && pages.getValue(after) > 0 && !isUsed(pages.getValue(after) - 1)) {
+			return take(pages.getValue(after) - 1);
+		}
+		return allocate();
+	}
+
+	// take the lowest run of free slots of the specified length
+	private int allocateRun(int count) {
+		int first = searchFrom * 64;
+		for (int slot = first; slot < first + count; ++slot) {
+			if (isUsed(slot)) {
+				first = slot + 1;
+			}
+		}
+		for (int slot = first; slot < first + count; ++slot) {
+			take(slot);
+		}
+		return first;
+	}
+
+	// take the lowest free slot, so the file stays as short as possible
 	private int allocate() {
-		if (freePage.isEmpty()) {
-			return pageCount++;
+		int word = searchFrom;
+		while (word < usedSlots.length && usedSlots[word] == -1L) {
+			word++;
 		}
-		return freePage.removeFirst();
+		if (word == usedSlots.length) {
+			usedSlots = Arrays.copyOf(usedSlots, usedSlots.length * 2);
+			slotRef = Arrays.copyOf(slotRef, usedSlots.length * 64);
+		}
+		searchFrom = word;
+
+		return take(word * 64 + Long.numberOfTrailingZeros(~usedSlots[word]));
+	}
+
+	private int take(int slot) {
+		while (slot >= usedSlots.length * 64) {
+			usedSlots = Arrays.copyOf(usedSlots, usedSlots.length * 2);
+			slotRef = Arrays.copyOf(slotRef, usedSlots.length * 64);
+		}
+		usedSlots[slot >> 6] |= 1L << slot;
+		slotRef[slot] = 1;
+		usedCount++;
+		slotCount = Math.max(slotCount, slot + 1);
+		return slot;
 	}
 	
-	private HashMap<Pair, TranslationEntry> mapping;
-	private HashMap<Pair, Integer> usedPage;
-	private LinkedList<Integer> freePage; 
+	private void release(int slot) {
+		if (--slotRef[slot] > 0) {
+			return;
+		}
+		usedSlots[slot >> 6] &= ~(1L << slot);
+		usedCount--;
+		if (cache != null) {
+			cache.remove(slot);
+		}
+		searchFrom = Math.min(searchFrom, slot >> 6);
+
+		// the file ends after the last slot in use
+		while (slotCount > 0 && !isUsed(slotCount - 1)) {
+			slotCount--;
+		}
+	}
+
+	private boolean isUsed(int slot) {
+		return slot < usedSlots.length * 64 && (usedSlots[slot >> 6] & (1L << slot)) != 0;
+	}
+
+	// move the pages at the end of the file into free slots below them, and
+	// shorten the file once most of it is unused
+	private void compact() {
+		if (slotCount - usedCount < compactThreshold) {
+			return;
+		}
+
+		// the records sharing each slot
+		int[] firstRecord = new int[slotCount];
+		Arrays.fill(firstRecord, -1);
+		int[] nextRecord = new int[pages.capacity()];
+		for (int record = 0; record < nextRecord.length; ++record) {
+			if (pages.isUsed(record)) {
+				int slot = pages.getValue(record);
+				nextRecord[record] = firstRecord[slot];
+				firstRecord[slot] = record;
+			}
+		}
+
+		readCount = 0;
+		byte[] buffer = new byte[pagesize];
+		int free = 0;
+		for (int slot = slotCount - 1; slot >= usedCount; --slot) {
+			if (!isUsed(slot)) {
+				continue;
+			}
+			while (isUsed(free)) {
+				free++;
+			}
+			if (cache != null && cache.contains(slot)) {
+				cache.move(slot, free);
+			} else {
+				backend.read(slot, 1, buffer, 0);
+				backend.write(free, 1, buffer, 0);
+			}
+			for (int record = firstRecord[slot]; record != -1; record = nextRecord[record]) {
+				pages.setValue(record, free);
+			}
+			usedSlots[free >> 6] |= 1L << free;
+			slotRef[free] = slotRef[slot];
+			usedSlots[slot >> 6] &= ~(1L << slot);
+			slotRef[slot] = 0;
+		}
+		slotCount = usedCount;
+		searchFrom = slotCount >> 6;
+
+		if (backend.getLength() >= 2 * slotCount + compactThreshold) {
+			backend.truncate(slotCount);
+		}
+	}
 	
-	private int pageCount = 0;
+	// (process, vpn) of each swapped page, with its slot as the value
+	private PageIndex pages;
+
+	// one bit per slot in use, and the number of pages sharing each slot
+	// after fork()
+	private long[] usedSlots = new long[1];
+	private int[] slotRef = new int[64];
+	private int searchFrom = 0;
+	private int usedCount = 0;
+	// slots at or after this one are free
+	private int slotCount = 0;
+
+	private static final int compactThreshold = 32;
+	private int clusterSize;
+	// the slots read ahead by the last read of the backend
+	private byte[] readBuffer;
+	private int readFirst = 0, readCount = 0;
+	// compressed pages kept in memory in front of the file, or null
+	private SwapCache cache = null;
 	
-	private String filename;
 	private static int pagesize;
-	OpenFile swapFile;
+	private SwapBackend backend;
+
+	private static final char dbgVM = 'v';
 }
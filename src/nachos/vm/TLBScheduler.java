@@ -3,6 +3,8 @@ package nachos.vm;
 
 import java.util.Random;
 
+import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.TranslationEntry;
 
@@ -20,6 +22,8 @@ public class TLBScheduler {
 			lru[i] = Machine.timer().getTime();
 			pid[i] = -1;
 		}
+		faultAround = Config.getInteger("VM.faultAround", 0);
+		Lib.assertTrue(faultAround >= 0 && faultAround < tlbsize);
 	}
 	
 	// clear TLB Entry
@@ -50,13 +54,47 @@ public class TLBScheduler {
 	
 	public void addTLBEntry(int processID, TranslationEntry entry) {
 		boolean intStatus = Machine.interrupt().disable();
+		entry.used = true;
+		writePageEntry(processID, entry);
+		insert(processID, entry, Machine.timer().getTime());
+		Machine.interrupt().setStatus(intStatus);
+	}
+
+	// map the resident pages following a missed page as well, looking older
+	// than it so they are replaced first. They are not marked used until the
+	// program touches them
+	private void addNeighbours(int processID, int vpn) {
+		boolean intStatus = Machine.interrupt().disable();
+		long time = Machine.timer().getTime() - 1;
+		for (int i = 1; i <= faultAround; ++i) {
+			TranslationEntry entry = VMKernel.pageScheduler.getResidentEntry(processID, vpn + i);
+			if (entry == null || contains(processID, vpn + i)) {
+				break;
+			}
+			entry = new TranslationEntry(entry);
+			entry.used = false;
+			entry.dirty = false;
+			insert(processID, entry, time);
+		}
+		Machine.interrupt().setStatus(intStatus);
+	}
+
+	private void insert(int processID, TranslationEntry entry, long time) {
 		int at = getVictim();
 		writeBackTLBEntry(processID, at);
-		writePageEntry(processID, entry);
 		writeTLBEntry(at, entry);
 		pid[at] = processID;
-		lru[at] = Machine.timer().getTime();
-		Machine.interrupt().setStatus(intStatus);
+		lru[at] = time;
+	}
+
+	private boolean contains(int processID, int vpn) {
+		for (int i = 0; i < tlbsize; ++i) {
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (entry.valid && pid[i] == processID && entry.vpn == vpn) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public void writeTLBEntry(int at, TranslationEntry entry) {
@@ -68,7 +106,7 @@ public class TLBScheduler {
 	public void writeBackTLBEntry(int processID, int at) {
 		boolean intStatus = Machine.interrupt().disable();
 		TranslationEntry entry = Machine.processor().readTLBEntry(at);
-		if (entry.dirty) {
+		if (entry.valid && (entry.used || entry.dirty)) {
 			writePageEntry(processID, entry);
 		}
 		Machine.interrupt().setStatus(intStatus);
@@ -90,6 +128,9 @@ public class TLBScheduler {
 		}
 		
 		addTLBEntry(processID, entry);
+		if (faultAround > 0) {
+			addNeighbours(processID, vpn);
+		}
 		/*
 		System.err.println("======");
 		for (int i = 0; i < tlbsize; ++i) {
@@ -100,6 +141,8 @@ public class TLBScheduler {
 	}
 	
 	public static int tlbsize;
+	// resident pages after a missed page to map along with it
+	private int faultAround;
 	
 	private int[] pid;
 	// least recently used
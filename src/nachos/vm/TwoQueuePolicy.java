@@ -0,0 +1,103 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q algorithm. A new page enters a FIFO queue, A1in, and is evicted from
+ * it in order without regard to references, so a scan cannot flood the rest
+ * of memory. Pages evicted from A1in are remembered in A1out; a fault on a
+ * page still in A1out shows it is reused, and brings it into the main set, Am,
+ * which is managed by a clock.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+	public TwoQueuePolicy() {
+	}
+
+	public void init(PageScheduler scheduler, int numFrames) {
+		this.scheduler = scheduler;
+		inLimit = Math.max(1, numFrames / 4);
+		outLimit = Math.max(1, numFrames / 2);
+		main = new boolean[numFrames];
+		referenced = new boolean[numFrames];
+		pageOf = new long[numFrames];
+		hand = 0;
+	}
+
+	public void pageIn(int ppn, long page) {
+		pageOf[ppn] = page;
+		referenced[ppn] = false;
+
+		if (out.remove(new Long(page))) {
+			main[ppn] = true;
+			mainCount++;
+		} else {
+			in.add(new Integer(ppn));
+		}
+	}
+
+	public void reference(int ppn) {
+		referenced[ppn] = true;
+	}
+
+	public void remove(int ppn) {
+		in.remove(new Integer(ppn));
+		if (main[ppn]) {
+			main[ppn] = false;
+			mainCount--;
+		}
+	}
+
+	public int getVictim() {
+		boolean stuck = false;
+		while (true) {
+			if (in.size() > inLimit || mainCount == 0 || stuck) {
+				for (Iterator<Integer> it = in.iterator(); it.hasNext();) {
+					int ppn = it.next().intValue();
+					if (scheduler.isPinned(ppn)) {
+						continue;
+					}
+					it.remove();
+					out.add(new Long(pageOf[ppn]));
+					if (out.size() > outLimit) {
+						Iterator<Long> oldest = out.iterator();
+						oldest.next();
+						oldest.remove();
+					}
+					return ppn;
+				}
+			}
+
+			for (int i = 0; i < 2 * main.length; ++i) {
+				int ppn = hand;
+				hand = (hand + 1) % main.length;
+				if (!main[ppn] || scheduler.isPinned(ppn)) {
+					continue;
+				}
+				if (referenced[ppn]) {
+					referenced[ppn] = false;
+					continue;
+				}
+				main[ppn] = false;
+				mainCount--;
+				return ppn;
+			}
+			// every frame of the main set is pinned
+			if (stuck) {
+				return -1;
+			}
+			stuck = true;
+		}
+	}
+
+	private PageScheduler scheduler;
+	private int inLimit, outLimit;
+	private int hand;
+	private int mainCount = 0;
+	private boolean[] main;
+	private boolean[] referenced;
+	private long[] pageOf;
+
+	private LinkedHashSet<Integer> in = new LinkedHashSet<Integer>();
+	private LinkedHashSet<Long> out = new LinkedHashSet<Long>();
+}
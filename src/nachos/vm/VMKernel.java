@@ -14,6 +14,7 @@ public class VMKernel extends UserKernel {
 		
 		tlbScheduler = new TLBScheduler();
 		pageScheduler = new PageScheduler();
+		sharedMemory = new SharedMemory();
 	}
 
 	/**
@@ -52,4 +53,6 @@ public class VMKernel extends UserKernel {
 	public static TLBScheduler tlbScheduler;
 	
 	public static PageScheduler pageScheduler;
+
+	public static SharedMemory sharedMemory;
 }
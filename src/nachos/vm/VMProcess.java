@@ -3,7 +3,7 @@ package nachos.vm;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
-import nachos.machine.TranslationEntry;
+import nachos.userprog.UserKernel;
 import nachos.userprog.UserProcess;
 
 /**
@@ -37,12 +37,24 @@ public class VMProcess extends UserProcess {
 		return (VMProcess) Lib.constructObject(Machine.getProcessClassName());
 	}
 	
-	public TranslationEntry getPP(int vpn, boolean writeBit) {
-		TranslationEntry entry = VMKernel.pageScheduler.getPageEntry(loader, processID, vpn);
-		if (entry == null || entry.readOnly && writeBit) {
-			return null;
-		}
-		return entry;
+	protected int[] pinPages(int firstVPN, int count, boolean write) {
+		count = Math.max(0, Math.min(count, numPages - firstVPN));
+		return VMKernel.pageScheduler.pinRange(loader, processID, firstVPN, count, write);
+	}
+
+	protected void unpinPages(int[] frames) {
+		VMKernel.pageScheduler.unpinFrames(frames);
+	}
+
+	// the new pages are brought in by the lazy loader on first touch
+	protected int allocateStack(int pages) {
+		int first = numPages;
+		numPages += pages;
+		return first;
+	}
+
+	// every context switch flushes the TLB, so other threads fault back in
+	protected void stopUserThreads() {
 	}
 
 	/**
@@ -53,6 +65,7 @@ public class VMProcess extends UserProcess {
 	 */
 	protected boolean loadSections() {//use lazy loader
 		loader = new LazyLoader(coff);
+		VMKernel.pageScheduler.setResourceUsage(processID, usage);
 		return true;
 	}
 
@@ -60,11 +73,163 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		int[] attached = loader.getAttachedVPNs();
+		for (int i = 0; i < attached.length; ++i) {
+			handleShmdt(attached[i] * pageSize);
+		}
 		VMKernel.tlbScheduler.clearTLB(processID);
 		VMKernel.pageScheduler.clearPage(processID);
 		coff.close();
 	}
 
+	private static final int syscallFork = 22, syscallShmget = 32,
+			syscallShmat = 33, syscallShmdt = 34;
+
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>32</td>
+	 * <td><tt>int  shmget(int key, int size);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>33</td>
+	 * <td><tt>void *shmat(int shmid);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>34</td>
+	 * <td><tt>int  shmdt(void *addr);</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * @param syscall
+	 *            the syscall number.
+	 * @param a0
+	 *            the first syscall argument.
+	 * @param a1
+	 *            the second syscall argument.
+	 * @param a2
+	 *            the third syscall argument.
+	 * @param a3
+	 *            the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallFork:
+			return handleFork();
+		case syscallShmget:
+			return handleShmget(a0, a1);
+		case syscallShmat:
+			return handleShmat(a0);
+		case syscallShmdt:
+			return handleShmdt(a0);
+
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Create a child process that is a copy of this one. Both processes share
+	 * every page until one of them writes to it, at which point the writer gets
+	 * its own copy.
+	 *
+	 * fork() returns the child's process ID in the parent, and 0 in the child.
+	 * The child can be joined like a child created by exec().
+	 */
+	private int handleFork() {
+		VMProcess child = newUserProcess();
+		child.coff = UserKernel.coffCache.duplicate(coff);
+		child.numPages = numPages;
+		child.loader = new LazyLoader(child.coff);
+		int[] attached = loader.getAttachedVPNs();
+		for (int i = 0; i < attached.length; ++i) {
+			int segmentID = loader.getAttachedSegment(attached[i]);
+			child.loader.attach(attached[i], segmentID);
+			VMKernel.sharedMemory.attach(segmentID);
+		}
+		child.copyDescriptors(this);
+
+		VMKernel.pageScheduler.setResourceUsage(child.processID, child.usage);
+		VMKernel.pageScheduler.fork(processID, child.processID);
+
+		// the child resumes after the syscall, seeing a return value of 0
+		Processor processor = Machine.processor();
+		int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < registers.length; ++i) {
+			registers[i] = processor.readRegister(i);
+		}
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+
+		return forkChild(child, registers);
+	}
+
+	/**
+	 * Return the ID of the shared memory segment with the specified key,
+	 * creating a segment of at least size bytes if there is none. Key 0
+	 * always creates a new segment. A new segment is filled with zeros.
+	 *
+	 * Returns the segment ID, or -1 if an error occurred.
+	 */
+	private int handleShmget(int key, int size) {
+		if (size <= 0 || size > maxSegmentPages * pageSize) {
+			return -1;
+		}
+		return VMKernel.sharedMemory.get(key, (size + pageSize - 1) / pageSize);
+	}
+
+	/**
+	 * Attach the specified shared memory segment at the end of the address
+	 * space of this process. Children created by fork() stay attached.
+	 *
+	 * Returns the address of the segment, or -1 if an error occurred.
+	 */
+	private int handleShmat(int segmentID) {
+		int pages = VMKernel.sharedMemory.getNumPages(segmentID);
+		if (pages < 0) {
+			return -1;
+		}
+		int firstVPN = numPages;
+		numPages += pages;
+		loader.attach(firstVPN, segmentID);
+		VMKernel.sharedMemory.attach(segmentID);
+		return firstVPN * pageSize;
+	}
+
+	/**
+	 * Detach the shared memory segment attached at the specified address. The
+	 * segment is destroyed once no process is attached to it.
+	 *
+	 * Returns 0 on success, or -1 if no segment is attached at addr.
+	 */
+	private int handleShmdt(int addr) {
+		if (addr % pageSize != 0) {
+			return -1;
+		}
+		int firstVPN = addr / pageSize;
+		int segmentID = loader.detach(firstVPN);
+		if (segmentID == -1) {
+			return -1;
+		}
+		VMKernel.pageScheduler.unmapRange(processID, firstVPN,
+				VMKernel.sharedMemory.getNumPages(segmentID));
+		VMKernel.sharedMemory.detach(segmentID);
+		return 0;
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -78,12 +243,19 @@ public class VMProcess extends UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionTLBMiss:
+			usage.tlbMisses++;
 			VMKernel.tlbScheduler.handleTLBMiss(loader, processID, Processor.pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr)));
 			break;
 			
 		case Processor.exceptionPageFault:
 			VMKernel.pageScheduler.handlePageFault(loader, processID, Processor.pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr)));
 			break;
+
+		case Processor.exceptionReadOnly:
+			if (!VMKernel.pageScheduler.handleCopyOnWrite(processID, Processor.pageFromAddress(Machine.processor().readRegister(Processor.regBadVAddr)))) {
+				super.handleException(cause);
+			}
+			break;
 		
 		default:
 			super.handleException(cause);
@@ -94,6 +266,7 @@ public class VMProcess extends UserProcess {
 	private LazyLoader loader;
 
 	private static final int pageSize = Processor.pageSize;
+	private static final int maxSegmentPages = 1024;
 	private static final char dbgProcess = 'a';
 	private static final char dbgVM = 'v';
 }
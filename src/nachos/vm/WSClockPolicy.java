@@ -0,0 +1,93 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+
+/**
+ * The WSClock algorithm: a clock whose hand records when each frame was last
+ * seen referenced, and evicts frames that have left the working set, that is,
+ * that have not been referenced for longer than a window of ticks. Clean
+ * frames are preferred, since they need not be written to swap. If no frame
+ * has left the working set, the least recently referenced one is evicted.
+ *
+ * <p>
+ * The window is given by the <tt>nachos.conf</tt> key
+ * <tt>VM.workingSetWindow</tt>.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+	public WSClockPolicy() {
+	}
+
+	public void init(PageScheduler scheduler, int numFrames) {
+		this.scheduler = scheduler;
+		window = Config.getInteger("VM.workingSetWindow", 10000);
+		resident = new boolean[numFrames];
+		referenced = new boolean[numFrames];
+		lastUse = new long[numFrames];
+		hand = 0;
+	}
+
+	public void pageIn(int ppn, long page) {
+		resident[ppn] = true;
+		referenced[ppn] = false;
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void reference(int ppn) {
+		referenced[ppn] = true;
+	}
+
+	public void remove(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int getVictim() {
+		// after one sweep every unpinned frame has its reference bit clear
+		for (int pass = 0; pass < 2; ++pass) {
+			long now = Machine.timer().getTime();
+			int oldDirty = -1, oldest = -1;
+			for (int i = 0; i < resident.length; ++i) {
+				int ppn = hand;
+				hand = (hand + 1) % resident.length;
+				if (!resident[ppn] || scheduler.isPinned(ppn)) {
+					continue;
+				}
+				if (referenced[ppn]) {
+					referenced[ppn] = false;
+					lastUse[ppn] = now;
+					continue;
+				}
+				if (now - lastUse[ppn] > window) {
+					if (!scheduler.isDirty(ppn)) {
+						return take(ppn);
+					}
+					if (oldDirty == -1) {
+						oldDirty = ppn;
+					}
+				}
+				if (oldest == -1 || lastUse[ppn] < lastUse[oldest]) {
+					oldest = ppn;
+				}
+			}
+			if (oldDirty != -1) {
+				return take(oldDirty);
+			}
+			if (oldest != -1) {
+				return take(oldest);
+			}
+		}
+		return -1;
+	}
+
+	private int take(int ppn) {
+		resident[ppn] = false;
+		return ppn;
+	}
+
+	private PageScheduler scheduler;
+	private long window;
+	private int hand;
+	private boolean[] resident;
+	private boolean[] referenced;
+	private long[] lastUse;
+}